@@ -0,0 +1,87 @@
+package jenkins.plugins.testrail;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.plugins.testrail.util.HttpClientUtil;
+import jenkins.plugins.testrail.util.PlanSnapshotCache;
+import jenkins.plugins.testrail.util.TestRailJsonParser;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * BasePlanPrefetcher Class
+ *
+ * Once a minute, while the build queue is empty, re-reads the base plans of
+ * every "Generate TestRail Test Plan" step whose snapshot is about to expire.
+ * Steps taking the plan ID from a build variable cannot be prefetched.
+ */
+@Extension
+public class BasePlanPrefetcher extends AsyncPeriodicWork {
+
+    public BasePlanPrefetcher() {
+        super("TestRail base plan prefetch");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final Jenkins jenkins = Jenkins.getInstance();
+        final HttpRequest.DescriptorImpl descriptor = jenkins.getDescriptorByType(HttpRequest.DescriptorImpl.class);
+        final long maxAgeMillis = descriptor.getPrefetchMaxAgeMillis();
+        if (maxAgeMillis <= 0) {
+            PlanSnapshotCache.clear();
+            return;
+        }
+        if (!jenkins.getQueue().isEmpty()) {
+            listener.getLogger().println("Build queue is busy, skipping prefetch");
+            return;
+        }
+
+        // Refresh a recurrence early so a snapshot never expires between two runs
+        final long refreshAgeMillis = Math.max(0, maxAgeMillis - getRecurrencePeriod());
+        final PrintStream logger = listener.getLogger();
+        final Set<String> keys = new HashSet<String>();
+        for (Project<?, ?> project : jenkins.getAllItems(Project.class)) {
+            if (project.isDisabled()) {
+                continue;
+            }
+            for (HttpRequest builder : project.getBuildersList().getAll(HttpRequest.class)) {
+                final String basePlanId = builder.getBasePlanId();
+                if (basePlanId == null || basePlanId.isEmpty() || basePlanId.startsWith("${")) {
+                    continue;
+                }
+                final String getPlanQueryUrl = builder.getGetPlanUrl() + "/" + basePlanId;
+                final String key = PlanSnapshotCache.key(getPlanQueryUrl, builder.getGetTestsUrl(), builder.getCustomHeader());
+                if (!keys.add(key) || PlanSnapshotCache.get(key, refreshAgeMillis) != null) {
+                    continue;
+                }
+
+                final SystemDefaultHttpClient httpclient = new SystemDefaultHttpClient();
+                final PlanSnapshotCache.Snapshot snapshot;
+                try {
+                    snapshot = HttpRequest.fetchPlan(new HttpClientUtil(), httpclient, new TestRailJsonParser(),
+                            getPlanQueryUrl, builder.getGetTestsUrl(), builder.getCustomHeader(), logger, false);
+                } finally {
+                    httpclient.getConnectionManager().shutdown();
+                }
+                if (snapshot != null && snapshot.isComplete()) {
+                    PlanSnapshotCache.put(key, snapshot, descriptor.getPrefetchMemoryCapBytes());
+                } else {
+                    logger.println(String.format("Unable to prefetch %s for %s", getPlanQueryUrl, project.getFullName()));
+                }
+            }
+        }
+        PlanSnapshotCache.retainAll(keys);
+    }
+}
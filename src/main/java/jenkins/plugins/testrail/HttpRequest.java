@@ -18,9 +18,14 @@ import hudson.util.ListBoxModel;
 import hudson.util.VariableResolver;
 import jenkins.plugins.testrail.auth.Authenticator;
 import jenkins.plugins.testrail.auth.BasicAuthentication;
+import jenkins.plugins.testrail.util.CaseFilter;
+import jenkins.plugins.testrail.util.CaseIndex;
+import jenkins.plugins.testrail.util.CaseIndexCache;
 import jenkins.plugins.testrail.util.HttpClientUtil;
+import jenkins.plugins.testrail.util.PlanSnapshotCache;
 import jenkins.plugins.testrail.util.TestRailJsonParser;
 import net.sf.json.JSONObject;
+import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.SystemDefaultHttpClient;
 import org.json.simple.parser.ParseException;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -35,9 +40,21 @@ import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HttpRequest Class
@@ -46,10 +63,21 @@ public class HttpRequest extends Builder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpRequest.class);
 
+    public static final int DEFAULT_ENTRY_PARALLELISM = 4;
+    private static final int ENTRY_ATTEMPTS = 3;
+    private static final long ENTRY_RETRY_DELAY_MILLIS = 2000;
+    // A Retry-After longer than this fails the entry rather than holding the build
+    static final long MAX_ENTRY_RETRY_DELAY_MILLIS = 60000;
+    private static final Random RETRY_JITTER = new Random();
+
     private final String basePlanId;
     private final String getPlanUrl;
     private final String getTestsUrl;
     private final String addPlanUrl;
+    private final String addPlanEntryUrl;
+    private final int entryParallelism;
+    private final String getCasesUrl;
+    private final String caseFilter;
     private final String customHeader;
     private final String outputFile;
     private final String authentication;
@@ -57,12 +85,18 @@ public class HttpRequest extends Builder {
 
     @DataBoundConstructor
     public HttpRequest(String basePlanId, String getPlanUrl, String getTestsUrl, String addPlanUrl,
+                       String addPlanEntryUrl, int entryParallelism,
+                       String getCasesUrl, String caseFilter,
                        String authentication, String customHeader, String outputFile, Boolean consoleLogResponseBody)
                        throws URISyntaxException {
         this.basePlanId = basePlanId;
         this.getPlanUrl = getPlanUrl;
         this.getTestsUrl = getTestsUrl;
         this.addPlanUrl = addPlanUrl;
+        this.addPlanEntryUrl = Util.fixEmpty(addPlanEntryUrl);
+        this.entryParallelism = entryParallelism > 0 ? entryParallelism : DEFAULT_ENTRY_PARALLELISM;
+        this.getCasesUrl = Util.fixEmpty(getCasesUrl);
+        this.caseFilter = Util.fixEmpty(caseFilter);
         this.customHeader = customHeader;
         this.outputFile = outputFile;
         this.authentication = Util.fixEmpty(authentication);
@@ -85,6 +119,22 @@ public class HttpRequest extends Builder {
         return addPlanUrl;
     }
 
+    public String getAddPlanEntryUrl() {
+        return addPlanEntryUrl;
+    }
+
+    public int getEntryParallelism() {
+        return entryParallelism;
+    }
+
+    public String getGetCasesUrl() {
+        return getCasesUrl;
+    }
+
+    public String getCaseFilter() {
+        return caseFilter;
+    }
+
     public String getCustomHeader() {
         return customHeader;
     }
@@ -131,51 +181,88 @@ public class HttpRequest extends Builder {
         // Parse JSON from testrails API
         final TestRailJsonParser testRailJsonParser = new TestRailJsonParser();
 
-        // Do the first HTTP GET to .../get_plan
+        // Use the prefetched copy of the base plan if it is fresh enough
         String getPlanQueryUrl = getPlanUrl + "/" + planId;
-        logger.println(String.format("get_plan API URL: %s", getPlanQueryUrl));
-        final String httpRespGetPlan = clientUtil.executeGet(httpclient, null, customHeader, getPlanQueryUrl, logger, consoleLogResponseBody);
-        if(httpRespGetPlan == null || httpRespGetPlan.isEmpty()) {
-            return false;
+        final long prefetchMaxAgeMillis = getDescriptor().getPrefetchMaxAgeMillis();
+        PlanSnapshotCache.Snapshot snapshot = null;
+        if (prefetchMaxAgeMillis > 0) {
+            snapshot = PlanSnapshotCache.get(PlanSnapshotCache.key(getPlanQueryUrl, getTestsUrl, customHeader), prefetchMaxAgeMillis);
         }
-
-        // Iterate through the returned data and perform more HTTP GET queries
-        Map<String, String> testsJson = new HashMap<String, String>();
-        List<String> testIds = testRailJsonParser.decodeGetPlanJSON(httpRespGetPlan);
-        for (String testId : testIds) {
-            // Do HTTP query to .../get_test with test id
-            String getTestsQueryUrl = getTestsUrl + "/" + testId;
-            logger.println(String.format("get_tests API URL: %s", getTestsQueryUrl));
-            final String httpRespGetTests = clientUtil.executeGet(httpclient, null, customHeader, getTestsQueryUrl, logger, consoleLogResponseBody);
-            if(httpRespGetTests == null || httpRespGetTests.isEmpty()) {
+        if (snapshot != null) {
+            logger.println(String.format("Using prefetched %s from %d seconds ago", getPlanQueryUrl, snapshot.getAgeMillis() / 1000));
+        }
+        else {
+            snapshot = fetchPlan(clientUtil, httpclient, testRailJsonParser, getPlanQueryUrl, getTestsUrl, customHeader,
+                    logger, consoleLogResponseBody);
+            if (snapshot == null) {
+                return false;
+            }
+            if (!snapshot.isComplete()) {
                 success = false;
             }
-            else {
-                logger.println("TEST ID: " + testId);
-                logger.println("JSON: " + httpRespGetTests);
-                testsJson.put(testId, httpRespGetTests);
+        }
+        final String httpRespGetPlan = snapshot.getPlanJson();
+        final Map<String, String> testsJson = snapshot.getTestsJson();
+
+        // Narrow the cases copied into the new plan
+        Map<String, CaseIndex.Selection> suiteSelections = null;
+        if (caseFilter != null) {
+            suiteSelections = selectCases(httpclient, clientUtil, testRailJsonParser, httpRespGetPlan,
+                    Collections.<String>emptySet(), logger);
+            if (suiteSelections == null) {
+                return false;
             }
         }
 
         String newTestPlan = null;
         try {
             logger.println("Creating new test plan...");
-            newTestPlan = testRailJsonParser.createNewPlan(httpRespGetPlan, testsJson);
+            newTestPlan = testRailJsonParser.createNewPlan(httpRespGetPlan, testsJson, suiteSelections);
+            if (suiteSelections != null && !testRailJsonParser.getUnindexedSuiteIds().isEmpty()) {
+                // Cases added since the index was cached: reload those suites and filter again
+                final Set<String> reloadSuiteIds = new HashSet<String>(testRailJsonParser.getUnindexedSuiteIds());
+                logger.println(String.format("Suites %s have cases that are not in the cached case index, reloading it",
+                        reloadSuiteIds));
+                suiteSelections = selectCases(httpclient, clientUtil, testRailJsonParser, httpRespGetPlan,
+                        reloadSuiteIds, logger);
+                if (suiteSelections == null) {
+                    return false;
+                }
+                newTestPlan = testRailJsonParser.createNewPlan(httpRespGetPlan, testsJson, suiteSelections);
+                if (!testRailJsonParser.getUnindexedSuiteIds().isEmpty()) {
+                    logger.println(String.format("WARNING: get_cases does not return the cases of %d tests in suites %s. They were copied without filtering.",
+                            testRailJsonParser.getUnindexedTests(), testRailJsonParser.getUnindexedSuiteIds()));
+                }
+            }
         } catch (ParseException e) {
-            e.printStackTrace();
+            logger.println("Caught exception... " + e);
+        }
+        if (newTestPlan == null) {
+            logger.println("The new test plan could not be created, nothing was posted.");
+            return false;
+        }
+
+        if (suiteSelections != null && testRailJsonParser.getNewPlanEntries().isEmpty()) {
+            logger.println(String.format("No test of the base plan matches filter \"%s\", nothing was posted.", caseFilter));
+            return false;
         }
 
         logger.println("\nNEW TEST PLAN\n" + newTestPlan);
 
         // Do the HTTP POST to .../new_plan
+        // With an add_plan_entry URL only the plan itself is posted here, its entries follow one by one
         String projectId = testRailJsonParser.getProjectId(httpRespGetPlan);
         String addPlanQueryUrl = addPlanUrl + "/" + projectId;
         logger.println(String.format("add_plan API URL: %s", addPlanQueryUrl));
-        final String httpRespNewPlan = clientUtil.executePost(httpclient, authentication, customHeader, addPlanQueryUrl, logger, newTestPlan, consoleLogResponseBody);
+        final String addPlanContent = addPlanEntryUrl == null ? newTestPlan : testRailJsonParser.createNewPlanShell();
+        final String httpRespNewPlan = clientUtil.executePost(httpclient, authentication, customHeader, addPlanQueryUrl, logger, addPlanContent, consoleLogResponseBody);
         if(httpRespNewPlan != null && !httpRespNewPlan.isEmpty()) {
             FilePath outputFilePath = build.getWorkspace().child(outputFile);
             String newPlanId = testRailJsonParser.getNewPlanId(httpRespNewPlan);
             outputFilePath.write().write(newPlanId.getBytes());
+            if (addPlanEntryUrl != null && !addPlanEntries(clientUtil, testRailJsonParser, newPlanId, logger)) {
+                success = false;
+            }
         }
         else {
             success = false;
@@ -186,6 +273,226 @@ public class HttpRequest extends Builder {
 
 
 
+    /**
+     * GET the plan and then the tests of each of its runs.
+     * @return the responses, or null if get_plan failed
+     */
+    static PlanSnapshotCache.Snapshot fetchPlan(HttpClientUtil clientUtil, DefaultHttpClient httpclient,
+                                                TestRailJsonParser testRailJsonParser, String getPlanQueryUrl,
+                                                String getTestsUrl, String customHeader, PrintStream logger,
+                                                boolean consoleLogResponseBody) throws IOException, InterruptedException {
+        // Do the first HTTP GET to .../get_plan
+        logger.println(String.format("get_plan API URL: %s", getPlanQueryUrl));
+        final String httpRespGetPlan = clientUtil.executeGet(httpclient, null, customHeader, getPlanQueryUrl, logger, consoleLogResponseBody);
+        if(httpRespGetPlan == null || httpRespGetPlan.isEmpty()) {
+            return null;
+        }
+
+        // Iterate through the returned data and perform more HTTP GET queries
+        boolean complete = true;
+        Map<String, String> testsJson = new HashMap<String, String>();
+        List<String> testIds = testRailJsonParser.decodeGetPlanJSON(httpRespGetPlan);
+        for (String testId : testIds) {
+            // Do HTTP query to .../get_test with test id
+            String getTestsQueryUrl = getTestsUrl + "/" + testId;
+            logger.println(String.format("get_tests API URL: %s", getTestsQueryUrl));
+            final String httpRespGetTests = clientUtil.executeGet(httpclient, null, customHeader, getTestsQueryUrl, logger, consoleLogResponseBody);
+            if(httpRespGetTests == null || httpRespGetTests.isEmpty()) {
+                complete = false;
+            }
+            else {
+                logger.println("TEST ID: " + testId);
+                testsJson.put(testId, httpRespGetTests);
+            }
+        }
+
+        return new PlanSnapshotCache.Snapshot(httpRespGetPlan, testsJson, complete);
+    }
+
+    /**
+     * Post every entry of the new plan to add_plan_entry, entryParallelism at a
+     * time, so one slow or failed entry does not lose the rest of the plan.
+     * Entries are submitted in base plan order, but with entryParallelism above 1
+     * TestRail creates them in the order the requests finish.
+     * add_plan_entry is not idempotent, so an entry is only retried when its
+     * request cannot have been acted on: the connection failed, or TestRail
+     * answered 429 or 503. Retries wait as long as Retry-After asks, or back off
+     * exponentially when it is missing.
+     * @return false if any entry could not be created
+     */
+    private boolean addPlanEntries(final HttpClientUtil clientUtil, TestRailJsonParser testRailJsonParser, String newPlanId,
+                                   final PrintStream logger) throws InterruptedException {
+        final List<String> entries = testRailJsonParser.getNewPlanEntries();
+        // The parser is not thread-safe, so suite IDs for the log are read up front
+        final List<String> suiteIds = new ArrayList<String>();
+        for (String entry : entries) {
+            suiteIds.add(testRailJsonParser.getEntrySuiteId(entry));
+        }
+        final String addPlanEntryQueryUrl = addPlanEntryUrl + "/" + newPlanId;
+        final boolean logResponseBody = Boolean.TRUE.equals(consoleLogResponseBody);
+        logger.println(String.format("add_plan_entry API URL: %s (%d entries, %d at a time)",
+                addPlanEntryQueryUrl, entries.size(), entryParallelism));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(entryParallelism);
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < entries.size(); i++) {
+                final String entry = entries.get(i);
+                final String suiteId = suiteIds.get(i);
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        for (int attempt = 1; attempt <= ENTRY_ATTEMPTS; attempt++) {
+                            // Posting shuts the connection manager down, so each request gets its own client
+                            final HttpClientUtil.PostResponse response = clientUtil.executePostForResponse(
+                                    new SystemDefaultHttpClient(), authentication, customHeader, addPlanEntryQueryUrl,
+                                    logger, entry, logResponseBody);
+                            if (response.isSuccess()) {
+                                return true;
+                            }
+                            final long delayMillis = retryDelayMillis(response.getRetryAfterSeconds(), attempt);
+                            final boolean retry = response.isRetryable() && attempt < ENTRY_ATTEMPTS
+                                    && delayMillis <= MAX_ENTRY_RETRY_DELAY_MILLIS;
+                            logger.println(String.format("add_plan_entry for suite_id %s failed on attempt %d of %d: %s, %s",
+                                    suiteId, attempt, ENTRY_ATTEMPTS, response.describe(),
+                                    retry ? String.format("retrying in %d ms", delayMillis)
+                                            : !response.isRetryable() ? "not retrying as the entry may have been created"
+                                            : delayMillis > MAX_ENTRY_RETRY_DELAY_MILLIS
+                                            ? String.format("giving up as TestRail asked to wait %d s", response.getRetryAfterSeconds())
+                                            : "giving up"));
+                            if (!retry) {
+                                return false;
+                            }
+                            Thread.sleep(delayMillis);
+                        }
+                        return false;
+                    }
+                }));
+            }
+
+            int failedEntries = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                boolean created;
+                try {
+                    created = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.println("Caught exception... " + e.getCause());
+                    created = false;
+                }
+                if (!created) {
+                    failedEntries++;
+                    logger.println(String.format("Plan entry %d of %d (suite_id %s) could not be created",
+                            i + 1, entries.size(), suiteIds.get(i)));
+                }
+            }
+            if (failedEntries > 0) {
+                logger.println(String.format("%d of %d plan entries failed, plan %s is incomplete",
+                        failedEntries, entries.size(), newPlanId));
+                return false;
+            }
+            return true;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The wait before retrying an entry: what Retry-After asks for, otherwise
+     * ENTRY_RETRY_DELAY_MILLIS doubled on every attempt, plus up to half of it
+     * again so that entries turned away together do not retry together.
+     */
+    static long retryDelayMillis(long retryAfterSeconds, int attempt) {
+        if (retryAfterSeconds >= 0) {
+            return retryAfterSeconds * 1000;
+        }
+        final long backoff = ENTRY_RETRY_DELAY_MILLIS << (attempt - 1);
+        return backoff + (long) (RETRY_JITTER.nextDouble() * backoff / 2);
+    }
+
+    /**
+     * Evaluate caseFilter against the cached case index of every suite in the plan.
+     * @param reloadSuiteIds suites whose cached index is out of date and must be fetched again
+     * @return case selection keyed by suite_id, or null if an index could not be
+     * loaded, a filter field is on none of the cases or no case matches
+     */
+    private Map<String, CaseIndex.Selection> selectCases(SystemDefaultHttpClient httpclient, HttpClientUtil clientUtil,
+                                                         TestRailJsonParser testRailJsonParser, String planJson,
+                                                         Set<String> reloadSuiteIds, PrintStream logger)
+            throws IOException, InterruptedException {
+        if (getCasesUrl == null) {
+            logger.println("A get_cases API URL is required to filter cases.");
+            return null;
+        }
+        final CaseFilter filter;
+        try {
+            filter = new CaseFilter(caseFilter);
+        } catch (IllegalArgumentException e) {
+            logger.println("Invalid case filter: " + e.getMessage());
+            return null;
+        }
+
+        final Map<String, CaseIndex.Selection> suiteSelections = new HashMap<String, CaseIndex.Selection>();
+        final Set<String> missingFields = new TreeSet<String>(filter.getFields());
+        int selected = 0;
+        try {
+            final String projectId = testRailJsonParser.getProjectId(planJson);
+            for (String suiteId : testRailJsonParser.getSuiteIds(planJson)) {
+                final String getCasesQueryUrl = getCasesUrl + "/" + projectId + "&suite_id=" + suiteId;
+                final String cacheKey = CaseIndexCache.key(getCasesQueryUrl, filter);
+                CaseIndex index = reloadSuiteIds.contains(suiteId) ? null : CaseIndexCache.get(cacheKey);
+                if (index == null) {
+                    index = new CaseIndex(filter.getFields());
+                    String pageUrl = getCasesQueryUrl;
+                    while (pageUrl != null) {
+                        logger.println(String.format("get_cases API URL: %s", pageUrl));
+                        final String httpRespGetCases = clientUtil.executeGet(httpclient, null, customHeader, pageUrl, logger, false);
+                        if (httpRespGetCases == null || httpRespGetCases.isEmpty()) {
+                            return null;
+                        }
+                        final String next = index.addPage(httpRespGetCases);
+                        pageUrl = next == null ? null : resolveApiLink(getCasesUrl, next);
+                    }
+                    CaseIndexCache.put(cacheKey, index);
+                }
+                final CaseIndex.Selection selection = filter.evaluate(index);
+                logger.println(String.format("Suite %s: %d of %d cases match filter \"%s\"", suiteId, selection.size(), index.size(), caseFilter));
+                suiteSelections.put(suiteId, selection);
+                selected += selection.size();
+                final Iterator<String> missingField = missingFields.iterator();
+                while (missingField.hasNext()) {
+                    if (index.hasField(missingField.next())) {
+                        missingField.remove();
+                    }
+                }
+            }
+        } catch (ParseException e) {
+            logger.println("Unable to parse get_cases response: " + e);
+            return null;
+        }
+
+        if (!missingFields.isEmpty()) {
+            logger.println(String.format("Case filter \"%s\" uses %s, which no case of the plan's suites has. Check the field names.",
+                    caseFilter, missingFields));
+            return null;
+        }
+        if (selected == 0) {
+            logger.println(String.format("No case of the plan's suites matches filter \"%s\".", caseFilter));
+            return null;
+        }
+
+        return suiteSelections;
+    }
+
+    /**
+     * Paged API responses link to the next page relative to the API root, eg: /api/v2/get_cases/1&offset=250
+     */
+    private static String resolveApiLink(String apiUrl, String link) {
+        final int apiRoot = apiUrl.indexOf("/api/v2/");
+        if (apiRoot < 0 || !link.startsWith("/api/v2/")) {
+            return link;
+        }
+        return apiUrl.substring(0, apiRoot) + link;
+    }
+
     private String evaluate(String value, VariableResolver<String> vars, Map<String, String> env) {
         return Util.replaceMacro(Util.replaceMacro(value, vars), env);
     }
@@ -201,11 +508,40 @@ public class HttpRequest extends Builder {
         private List<BasicAuthentication> basicAuthentications = new ArrayList<BasicAuthentication>();
         private boolean defaultReturnCodeBuildRelevant = true;
     	private boolean defaultLogResponseBody = true;
+        private int prefetchIntervalMinutes = 0;
+        private int prefetchMemoryCapMb = 64;
 
         public DescriptorImpl() {
             load();
         }
 
+        public int getPrefetchIntervalMinutes() {
+            return prefetchIntervalMinutes;
+        }
+
+        public void setPrefetchIntervalMinutes(int prefetchIntervalMinutes) {
+            this.prefetchIntervalMinutes = prefetchIntervalMinutes;
+        }
+
+        public int getPrefetchMemoryCapMb() {
+            return prefetchMemoryCapMb;
+        }
+
+        public void setPrefetchMemoryCapMb(int prefetchMemoryCapMb) {
+            this.prefetchMemoryCapMb = prefetchMemoryCapMb;
+        }
+
+        /**
+         * @return how old a prefetched base plan may be and still be used, 0 when prefetching is off
+         */
+        public long getPrefetchMaxAgeMillis() {
+            return prefetchIntervalMinutes > 0 ? TimeUnit.MINUTES.toMillis(prefetchIntervalMinutes) : 0;
+        }
+
+        public long getPrefetchMemoryCapBytes() {
+            return prefetchMemoryCapMb * 1024L * 1024L;
+        }
+
 	    public boolean isDefaultLogResponseBody() {
 		    return defaultLogResponseBody;
 	    }
@@ -272,6 +608,30 @@ public class HttpRequest extends Builder {
             // return HttpRequestValidation.checkUrl(value);
         }
 
+        public FormValidation doCheckPrefetchIntervalMinutes(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckPrefetchMemoryCapMb(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckEntryParallelism(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckCaseFilter(@QueryParameter String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return FormValidation.ok();
+            }
+            try {
+                new CaseFilter(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doValidateKeyName(@QueryParameter String value) {
             List<Authenticator> list = getAuthentications();
 
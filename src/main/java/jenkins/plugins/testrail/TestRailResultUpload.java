@@ -0,0 +1,383 @@
+package jenkins.plugins.testrail;
+
+import hudson.*;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.plugins.testrail.auth.Authenticator;
+import jenkins.plugins.testrail.util.HttpClientUtil;
+import jenkins.plugins.testrail.util.ResultWriteBehindQueue;
+import jenkins.plugins.testrail.util.TestRailJsonParser;
+import jenkins.plugins.testrail.util.TestRailResult;
+import jenkins.plugins.testrail.util.TestReportParser;
+import net.sf.json.JSONObject;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TestRailResultUpload Class
+ *
+ * Reports are parsed on the agent, then posted to add_results_for_cases in
+ * batches with several batches in flight at once.
+ */
+public class TestRailResultUpload extends Builder {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final String reportFiles;
+    private final String runId;
+    private final String addResultsUrl;
+    private final String caseIdPattern;
+    private final int batchSize;
+    private final int parallelism;
+    private final String authentication;
+    private final String customHeader;
+    private final Boolean consoleLogResponseBody;
+    private final Boolean coalesceResults;
+
+    @DataBoundConstructor
+    public TestRailResultUpload(String reportFiles, String runId, String addResultsUrl, String caseIdPattern,
+                                int batchSize, int parallelism, String authentication, String customHeader,
+                                Boolean consoleLogResponseBody, Boolean coalesceResults) {
+        this.reportFiles = reportFiles;
+        this.runId = runId;
+        this.addResultsUrl = addResultsUrl;
+        this.caseIdPattern = Util.fixEmpty(caseIdPattern);
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+        this.authentication = Util.fixEmpty(authentication);
+        this.customHeader = customHeader;
+        this.consoleLogResponseBody = consoleLogResponseBody;
+        this.coalesceResults = coalesceResults;
+    }
+
+    public String getReportFiles() {
+        return reportFiles;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getAddResultsUrl() {
+        return addResultsUrl;
+    }
+
+    public String getCaseIdPattern() {
+        return caseIdPattern;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public String getAuthentication() {
+        return authentication;
+    }
+
+    public String getCustomHeader() {
+        return customHeader;
+    }
+
+    public Boolean getConsoleLogResponseBody() {
+        return consoleLogResponseBody;
+    }
+
+    public Boolean getCoalesceResults() {
+        return coalesceResults;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        final PrintStream logger = listener.getLogger();
+
+        // Form validation does not stop a job from being saved with a bad pattern
+        if (caseIdPattern != null) {
+            final String problem = TestReportParser.checkCaseIdPattern(caseIdPattern);
+            if (problem != null) {
+                logger.println(String.format("Case ID pattern \"%s\" cannot be used. %s", caseIdPattern, problem));
+                return false;
+            }
+        }
+
+        final EnvVars envVars = build.getEnvironment(listener);
+        final String resolvedRunId = Util.replaceMacro(runId, envVars);
+        final String resolvedReportFiles = Util.replaceMacro(reportFiles, envVars);
+
+        // Parse the reports where they live, only the results come back over the channel
+        final FilePath[] reports = build.getWorkspace().list(resolvedReportFiles);
+        if (reports.length == 0) {
+            logger.println("No test reports found matching: " + resolvedReportFiles);
+            return false;
+        }
+        final TestReportParser reportParser = new TestReportParser(caseIdPattern, listener);
+        final List<TestRailResult> results = new ArrayList<TestRailResult>();
+        for (FilePath report : reports) {
+            final List<TestRailResult> reportResults = report.act(reportParser);
+            logger.println(String.format("Parsed %d results from %s", reportResults.size(), report.getRemote()));
+            results.addAll(reportResults);
+        }
+        if (results.isEmpty()) {
+            logger.println("No tests with a TestRail case ID were found.");
+            return true;
+        }
+
+        final String addResultsQueryUrl = addResultsUrl + "/" + resolvedRunId;
+        logger.println(String.format("add_results_for_cases API URL: %s", addResultsQueryUrl));
+
+        final Authenticator authenticator = getDescriptor().getAuthentication(authentication);
+
+        if (Boolean.TRUE.equals(coalesceResults)) {
+            return submitToQueue(addResultsQueryUrl, authenticator, results, logger);
+        }
+
+        final boolean logResponseBody = Boolean.TRUE.equals(consoleLogResponseBody);
+        final HttpClientUtil clientUtil = new HttpClientUtil();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        int failedBatches = 0;
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (final List<TestRailResult> batch : batchByCase(results, batchSize)) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        final String body = TestRailJsonParser.createAddResultsJson(batch);
+                        // executePost shuts the connection manager down, so each batch gets its own client
+                        final String httpResp = clientUtil.executePost(new SystemDefaultHttpClient(), authenticator,
+                                customHeader, addResultsQueryUrl, logger, body, logResponseBody);
+                        return httpResp != null && !httpResp.isEmpty();
+                    }
+                }));
+            }
+            logger.println(String.format("Uploading %d results in %d batches", results.size(), futures.size()));
+
+            for (Future<Boolean> future : futures) {
+                try {
+                    if (!future.get()) {
+                        failedBatches++;
+                    }
+                } catch (ExecutionException e) {
+                    logger.println("Caught exception... " + e.getCause());
+                    failedBatches++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failedBatches > 0) {
+            logger.println(String.format("%d batches failed to upload", failedBatches));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Split results into batches of at most batchSize. Batches are posted
+     * concurrently, so all results for one case go in the same batch, where
+     * TestRail applies them in report order and the last one wins. A case with
+     * more than batchSize results gets a batch of its own.
+     */
+    static List<List<TestRailResult>> batchByCase(List<TestRailResult> results, int batchSize) {
+        final List<TestRailResult> sorted = new ArrayList<TestRailResult>(results);
+        // Collections.sort is stable, so the results of one case keep their report order
+        Collections.sort(sorted, new Comparator<TestRailResult>() {
+            public int compare(TestRailResult a, TestRailResult b) {
+                return a.getCaseId() < b.getCaseId() ? -1 : (a.getCaseId() == b.getCaseId() ? 0 : 1);
+            }
+        });
+
+        final List<List<TestRailResult>> batches = new ArrayList<List<TestRailResult>>();
+        int from = 0;
+        while (from < sorted.size()) {
+            int to = Math.min(from + batchSize, sorted.size());
+            // Cut before the case that would otherwise be split
+            while (to > from && to < sorted.size() && sorted.get(to).getCaseId() == sorted.get(to - 1).getCaseId()) {
+                to--;
+            }
+            if (to == from) {
+                to = from + 1;
+                while (to < sorted.size() && sorted.get(to).getCaseId() == sorted.get(from).getCaseId()) {
+                    to++;
+                }
+            }
+            batches.add(sorted.subList(from, to));
+            from = to;
+        }
+
+        return batches;
+    }
+
+    /**
+     * Hand the results to the controller wide queue, which batches them with
+     * results for the same run from other builds, and wait for them to be posted.
+     */
+    private boolean submitToQueue(String addResultsQueryUrl, Authenticator authenticator, List<TestRailResult> results,
+                                  PrintStream logger) throws InterruptedException {
+        logger.println(String.format("Queueing %d results for %s", results.size(), addResultsQueryUrl));
+        final ResultWriteBehindQueue.Acknowledgement acknowledgement =
+                ResultWriteBehindQueue.getInstance().submit(addResultsQueryUrl, authenticator, customHeader, results, logger);
+        acknowledgement.await();
+        if (!acknowledgement.isSuccess()) {
+            logger.println(String.format("%d results failed to upload", acknowledgement.getFailedResults()));
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        private int queueMaxBatch = ResultWriteBehindQueue.DEFAULT_MAX_BATCH;
+        private long queueMaxDelayMillis = ResultWriteBehindQueue.DEFAULT_MAX_DELAY_MILLIS;
+        private int queueMaxPending = ResultWriteBehindQueue.DEFAULT_MAX_PENDING;
+        private int queueFlushThreads = ResultWriteBehindQueue.DEFAULT_FLUSH_THREADS;
+
+        public DescriptorImpl() {
+            load();
+            configureQueue();
+        }
+
+        public int getQueueMaxBatch() {
+            return queueMaxBatch;
+        }
+
+        public void setQueueMaxBatch(int queueMaxBatch) {
+            this.queueMaxBatch = queueMaxBatch;
+        }
+
+        public long getQueueMaxDelayMillis() {
+            return queueMaxDelayMillis;
+        }
+
+        public void setQueueMaxDelayMillis(long queueMaxDelayMillis) {
+            this.queueMaxDelayMillis = queueMaxDelayMillis;
+        }
+
+        public int getQueueMaxPending() {
+            return queueMaxPending;
+        }
+
+        public void setQueueMaxPending(int queueMaxPending) {
+            this.queueMaxPending = queueMaxPending;
+        }
+
+        public int getQueueFlushThreads() {
+            return queueFlushThreads;
+        }
+
+        public void setQueueFlushThreads(int queueFlushThreads) {
+            this.queueFlushThreads = queueFlushThreads;
+        }
+
+        private void configureQueue() {
+            ResultWriteBehindQueue.getInstance().configure(queueMaxBatch, queueMaxDelayMillis, queueMaxPending, queueFlushThreads);
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject formData) throws
+                FormException {
+            req.bindJSON(this, formData);
+            save();
+            configureQueue();
+            return true;
+        }
+
+        /**
+         * Authentications are configured once, globally, on the test plan builder.
+         */
+        private HttpRequest.DescriptorImpl getHttpRequestDescriptor() {
+            return Jenkins.getInstance().getDescriptorByType(HttpRequest.DescriptorImpl.class);
+        }
+
+        public Authenticator getAuthentication(String keyName) {
+            if (keyName == null) {
+                return null;
+            }
+            return getHttpRequestDescriptor().getAuthentication(keyName);
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Upload TestRail Results";
+        }
+
+        public ListBoxModel doFillAuthenticationItems() {
+            return getHttpRequestDescriptor().doFillAuthenticationItems();
+        }
+
+        public FormValidation doCheckReportFiles(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckRunId(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckCaseIdPattern(@QueryParameter String value) {
+            if (value == null || value.isEmpty()) {
+                return FormValidation.ok();
+            }
+            final String problem = TestReportParser.checkCaseIdPattern(value);
+            return problem == null ? FormValidation.ok() : FormValidation.error(problem);
+        }
+
+        public FormValidation doCheckBatchSize(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckQueueMaxBatch(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckQueueMaxDelayMillis(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckQueueMaxPending(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckQueueFlushThreads(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package jenkins.plugins.testrail.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A filter is a list of terms separated by ';', all of which must match.
+ * A term is "field=value,value" (any of the values) or "field!=value,value"
+ * (none of the values). Fields are get_cases field names, e.g.
+ *
+ *   priority=3,4; type!=7; custom_automated=true
+ *
+ * priority, type, section, milestone and template are accepted for the
+ * matching *_id fields.
+ */
+public class CaseFilter {
+
+    private static final Map<String, String> ALIASES = new HashMap<String, String>();
+    static {
+        ALIASES.put("priority", "priority_id");
+        ALIASES.put("type", "type_id");
+        ALIASES.put("section", "section_id");
+        ALIASES.put("milestone", "milestone_id");
+        ALIASES.put("template", "template_id");
+    }
+
+    private final String expression;
+    private final List<Term> terms = new ArrayList<Term>();
+
+    public CaseFilter(String expression) {
+        this.expression = expression;
+        for (String termString : expression.split(";")) {
+            termString = termString.trim();
+            if (termString.isEmpty()) {
+                continue;
+            }
+            final int equals = termString.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected field=value in filter term: " + termString);
+            }
+            final boolean negated = termString.charAt(equals - 1) == '!';
+            String field = termString.substring(0, negated ? equals - 1 : equals).trim();
+            if (ALIASES.containsKey(field)) {
+                field = ALIASES.get(field);
+            }
+            final List<String> values = new ArrayList<String>();
+            for (String value : termString.substring(equals + 1).split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+            if (field.isEmpty() || values.isEmpty()) {
+                throw new IllegalArgumentException("Expected field=value in filter term: " + termString);
+            }
+            terms.add(new Term(field, negated, values));
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Empty case filter");
+        }
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the case fields this filter needs indexed
+     */
+    public Set<String> getFields() {
+        final Set<String> fields = new TreeSet<String>();
+        for (Term term : terms) {
+            fields.add(term.field);
+        }
+        return fields;
+    }
+
+    public CaseIndex.Selection evaluate(CaseIndex index) {
+        final BitSet result = index.all();
+        for (Term term : terms) {
+            final BitSet termBits = new BitSet();
+            for (String value : term.values) {
+                termBits.or(index.matching(term.field, value));
+            }
+            if (term.negated) {
+                result.andNot(termBits);
+            } else {
+                result.and(termBits);
+            }
+        }
+        return index.select(result);
+    }
+
+    private static final class Term {
+        private final String field;
+        private final boolean negated;
+        private final List<String> values;
+
+        private Term(String field, boolean negated, List<String> values) {
+            this.field = field;
+            this.negated = negated;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package jenkins.plugins.testrail.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Each case of a suite gets a position; every (field, value) pair maps to a
+ * BitSet of the positions holding that value. Filters are then plain
+ * and/or/andNot operations and never touch the case JSON again.
+ *
+ * Only the fields a filter asks for are indexed. Indexing everything would
+ * cost a bitset per distinct value of every field, including titles and
+ * timestamps.
+ */
+public class CaseIndex {
+
+    private final Set<String> fields;
+    private final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+    private final Map<String, Map<String, BitSet>> fieldValues = new HashMap<String, Map<String, BitSet>>();
+    private final Set<String> presentFields = new HashSet<String>();
+
+    public CaseIndex(Collection<String> fields) {
+        this.fields = new TreeSet<String>(fields);
+        for (String field : this.fields) {
+            fieldValues.put(field, new HashMap<String, BitSet>());
+        }
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    /**
+     * A missing field is indexed as the value "null", so a misspelt field name
+     * would otherwise just match nothing.
+     * @return true if at least one indexed case has the field
+     */
+    public boolean hasField(String field) {
+        return presentFields.contains(field);
+    }
+
+    /**
+     * Index one get_cases response. Older TestRail returns a bare array, newer
+     * versions a page object with a "cases" array and a "_links.next" link.
+     * @param json
+     * @return the next page link, or null on the last page
+     */
+    public String addPage(String json) throws ParseException {
+        // Not kept as a field: indexes live in the cache and the parser's lexer buffer is 32KB
+        final Object root = new JSONParser().parse(json);
+        final JSONArray casesJsonArray;
+        String next = null;
+        if (root instanceof JSONArray) {
+            casesJsonArray = (JSONArray)root;
+        } else {
+            final JSONObject rootJsonObject = (JSONObject)root;
+            casesJsonArray = (JSONArray)rootJsonObject.get("cases");
+            final JSONObject linksJsonObject = (JSONObject)rootJsonObject.get("_links");
+            if (linksJsonObject != null && linksJsonObject.get("next") != null) {
+                next = linksJsonObject.get("next").toString();
+            }
+        }
+
+        for (Object caseObject : casesJsonArray) {
+            final JSONObject caseJsonObject = (JSONObject)caseObject;
+            final Long caseId = Long.valueOf(caseJsonObject.get("id").toString());
+            if (positions.containsKey(caseId)) {
+                continue;
+            }
+            final int position = positions.size();
+            positions.put(caseId, position);
+            for (String field : fields) {
+                if (caseJsonObject.containsKey(field)) {
+                    presentFields.add(field);
+                }
+                final Object value = caseJsonObject.get(field);
+                if (value instanceof JSONArray) {
+                    // multi-select custom fields match on any of their values
+                    for (Object element : (JSONArray)value) {
+                        mark(field, String.valueOf(element), position);
+                    }
+                } else {
+                    mark(field, String.valueOf(value), position);
+                }
+            }
+        }
+
+        return next;
+    }
+
+    private void mark(String field, String value, int position) {
+        final Map<String, BitSet> values = fieldValues.get(field);
+        BitSet bits = values.get(value);
+        if (bits == null) {
+            bits = new BitSet();
+            values.put(value, bits);
+        }
+        bits.set(position);
+    }
+
+    /**
+     * @return a new BitSet with every case set
+     */
+    public BitSet all() {
+        final BitSet bits = new BitSet(positions.size());
+        bits.set(0, positions.size());
+        return bits;
+    }
+
+    /**
+     * @return a new BitSet of the cases whose field equals value
+     */
+    public BitSet matching(String field, String value) {
+        final Map<String, BitSet> values = fieldValues.get(field);
+        if (values == null) {
+            throw new IllegalArgumentException("Field is not indexed: " + field);
+        }
+        final BitSet bits = values.get(value);
+        return bits == null ? new BitSet() : (BitSet)bits.clone();
+    }
+
+    public Selection select(BitSet bits) {
+        return new Selection(bits);
+    }
+
+    /**
+     * The cases chosen by a filter, answering membership by case ID.
+     */
+    public class Selection {
+
+        private final BitSet bits;
+
+        private Selection(BitSet bits) {
+            this.bits = bits;
+        }
+
+        public int size() {
+            return bits.cardinality();
+        }
+
+        public boolean contains(Object caseId) {
+            final Integer position = position(caseId);
+            return position != null && bits.get(position);
+        }
+
+        /**
+         * A case added to the suite after the index was built is neither in
+         * nor out of the selection; callers must not treat it as excluded.
+         * @return true if the case was in the suite when the index was built
+         */
+        public boolean isIndexed(Object caseId) {
+            return position(caseId) != null;
+        }
+
+        private Integer position(Object caseId) {
+            if (caseId == null) {
+                return null;
+            }
+            return positions.get(caseId instanceof Long ? (Long)caseId : Long.valueOf(caseId.toString()));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jenkins.plugins.testrail.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Case fields change far less often than plans are cloned, so an index is
+ * reused by every build for a few minutes. Keyed by the get_cases URL of the
+ * suite plus the indexed fields.
+ */
+public final class CaseIndexCache {
+
+    public static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+    public static final int MAX_ENTRIES = 64;
+
+    private static final Map<String, Entry> CACHE = new LinkedHashMap<String, Entry>();
+
+    private CaseIndexCache() {
+    }
+
+    public static String key(String suiteCasesUrl, CaseFilter filter) {
+        return suiteCasesUrl + "|" + filter.getFields();
+    }
+
+    public static synchronized CaseIndex get(String key) {
+        final Entry entry = CACHE.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.createdMillis > MAX_AGE_MILLIS) {
+            CACHE.remove(key);
+            return null;
+        }
+        return entry.index;
+    }
+
+    public static synchronized void put(String key, CaseIndex index) {
+        CACHE.remove(key);
+        CACHE.put(key, new Entry(index, System.currentTimeMillis()));
+        final Iterator<String> oldest = CACHE.keySet().iterator();
+        while (CACHE.size() > MAX_ENTRIES && oldest.hasNext()) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final CaseIndex index;
+        private final long createdMillis;
+
+        private Entry(CaseIndex index, long createdMillis) {
+            this.index = index;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
@@ -1,23 +1,30 @@
 package jenkins.plugins.testrail.util;
 
 import java.io.*;
+import java.net.ConnectException;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.List;
 
 import hudson.FilePath;
+import jenkins.plugins.testrail.auth.Authenticator;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.util.EntityUtils;
 
 /**
@@ -70,8 +77,31 @@ public class HttpClientUtil {
 
     public String executePost(DefaultHttpClient httpClient, String authentication, String customHeader, String postUrl,
                              PrintStream logger, String postContent, boolean consolLogResponseBody) throws IOException, InterruptedException {
+        return post(httpClient, authentication, null, customHeader, postUrl, logger, postContent, consolLogResponseBody).getBody();
+    }
+
+    public String executePost(DefaultHttpClient httpClient, Authenticator authenticator, String customHeader, String postUrl,
+                              PrintStream logger, String postContent, boolean consolLogResponseBody) throws IOException, InterruptedException {
+        return post(httpClient, null, authenticator, customHeader, postUrl, logger, postContent, consolLogResponseBody).getBody();
+    }
+
+    /**
+     * Like executePost, but also reports the status code or exception, for
+     * callers that need to know whether a failed request reached the server.
+     */
+    public PostResponse executePostForResponse(DefaultHttpClient httpClient, String authentication, String customHeader,
+                                               String postUrl, PrintStream logger, String postContent,
+                                               boolean consolLogResponseBody) throws IOException, InterruptedException {
+        return post(httpClient, authentication, null, customHeader, postUrl, logger, postContent, consolLogResponseBody);
+    }
+
+    private PostResponse post(DefaultHttpClient httpClient, String authentication, Authenticator authenticator, String customHeader,
+                              String postUrl, PrintStream logger, String postContent, boolean consolLogResponseBody) {
 
         String returnData = null;
+        int statusCode = 0;
+        long retryAfterSeconds = -1;
+        Exception exception = null;
         try {
             URI uri = new URI(postUrl);
             doSecurity(httpClient, uri);
@@ -86,23 +116,117 @@ public class HttpClientUtil {
                 String[] parts = customHeader.split(":");
                 request.addHeader(parts[0], parts[1]);
             }
+            if(authenticator != null) {
+                authenticator.authenticate(httpClient, request, logger);
+            }
             request.setEntity(params);
             HttpResponse httpResponse = httpClient.execute(request);
             logger.println("HTTP response: " + httpResponse.toString());
-            if (httpResponse.getStatusLine().getStatusCode() == 200) {
+            statusCode = httpResponse.getStatusLine().getStatusCode();
+            if (statusCode == 200) {
                 returnData = EntityUtils.toString(httpResponse.getEntity());
                 if (consolLogResponseBody) {
                     logger.println("Response: \n" + returnData);
                 }
             }
+            else {
+                retryAfterSeconds = parseRetryAfter(httpResponse.getFirstHeader("Retry-After"));
+            }
         } catch (Exception ex) {
+            exception = ex;
             logger.println("Caught exception.. ." + ex.getMessage());
             logger.println(ex.getStackTrace().toString());
         } finally {
             httpClient.getConnectionManager().shutdown();
         }
 
-        return returnData;
+        return new PostResponse(statusCode, returnData, exception, retryAfterSeconds);
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date.
+     * @return the seconds to wait, or -1 if the header is missing or malformed
+     */
+    static long parseRetryAfter(Header header) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        final String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // not seconds, try a date
+        }
+        try {
+            return Math.max(0, (DateUtils.parseDate(value).getTime() - System.currentTimeMillis() + 999) / 1000);
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The outcome of a POST: the body on HTTP 200, otherwise the status code
+     * or the exception that ended the request.
+     */
+    public static final class PostResponse {
+        private final int statusCode;
+        private final String body;
+        private final Exception exception;
+        private final long retryAfterSeconds;
+
+        PostResponse(int statusCode, String body, Exception exception, long retryAfterSeconds) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.exception = exception;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return the status code, or 0 if no response was received
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        /**
+         * @return the seconds the server asked to wait before retrying with
+         * Retry-After, or -1 if it did not say
+         */
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public boolean isSuccess() {
+            return body != null && !body.isEmpty();
+        }
+
+        /**
+         * True only when the request cannot have been acted on: no connection
+         * was made, or the server turned it away with 429 or 503. Anything else,
+         * such as a read timeout, may have been processed.
+         */
+        public boolean isRetryable() {
+            return exception instanceof ConnectException
+                    || exception instanceof ConnectTimeoutException
+                    || exception instanceof UnknownHostException
+                    || statusCode == 429
+                    || statusCode == 503;
+        }
+
+        public String describe() {
+            if (exception != null) {
+                return exception.toString();
+            }
+            return "HTTP " + statusCode;
+        }
     }
 
     private void doSecurity(DefaultHttpClient httpClient, URI uri) throws IOException {
@@ -0,0 +1,134 @@
+package jenkins.plugins.testrail.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * get_plan and get_tests responses of the configured base plans, kept warm by
+ * the prefetcher so a burst of builds only has to post add_plan. Keyed by the
+ * get_plan URL of the plan, the get_tests URL and the custom header.
+ *
+ * Entries are kept in the order they were fetched and the oldest are dropped
+ * once the total size goes over the memory cap.
+ */
+public final class PlanSnapshotCache {
+
+    private static final Map<String, Snapshot> CACHE = new LinkedHashMap<String, Snapshot>();
+    private static long bytes;
+
+    private PlanSnapshotCache() {
+    }
+
+    public static String key(String getPlanQueryUrl, String getTestsUrl, String customHeader) {
+        return getPlanQueryUrl + "|" + getTestsUrl + "|" + (customHeader == null ? "" : customHeader);
+    }
+
+    /**
+     * @return the snapshot if it is at most maxAgeMillis old, otherwise null
+     */
+    public static synchronized Snapshot get(String key, long maxAgeMillis) {
+        final Snapshot snapshot = CACHE.get(key);
+        if (snapshot == null || snapshot.getAgeMillis() > maxAgeMillis) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    public static synchronized void put(String key, Snapshot snapshot, long maxBytes) {
+        remove(key);
+        if (snapshot.bytes > maxBytes) {
+            return;
+        }
+        CACHE.put(key, snapshot);
+        bytes += snapshot.bytes;
+        final Iterator<Snapshot> oldest = CACHE.values().iterator();
+        while (bytes > maxBytes && oldest.hasNext()) {
+            bytes -= oldest.next().bytes;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Drop every snapshot whose key is not in keys, eg: plans no longer used by any job.
+     */
+    public static synchronized void retainAll(Collection<String> keys) {
+        final Set<String> stale = new HashSet<String>(CACHE.keySet());
+        stale.removeAll(keys);
+        for (String key : stale) {
+            remove(key);
+        }
+    }
+
+    public static synchronized void clear() {
+        CACHE.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the estimated size of all cached snapshots
+     */
+    static synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static void remove(String key) {
+        final Snapshot previous = CACHE.remove(key);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+    }
+
+    /**
+     * A base plan and the get_tests response of each of its runs, keyed by run ID.
+     */
+    public static final class Snapshot {
+        private final String planJson;
+        private final Map<String, String> testsJson;
+        private final boolean complete;
+        private final long fetchedMillis;
+        private final long bytes;
+
+        public Snapshot(String planJson, Map<String, String> testsJson, boolean complete) {
+            this.planJson = planJson;
+            this.testsJson = Collections.unmodifiableMap(testsJson);
+            this.complete = complete;
+            this.fetchedMillis = System.currentTimeMillis();
+            long chars = planJson.length();
+            for (Map.Entry<String, String> entry : testsJson.entrySet()) {
+                chars += entry.getKey().length() + entry.getValue().length();
+            }
+            this.bytes = chars * 2;
+        }
+
+        public String getPlanJson() {
+            return planJson;
+        }
+
+        public Map<String, String> getTestsJson() {
+            return testsJson;
+        }
+
+        /**
+         * @return false if get_tests failed for any run
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getAgeMillis() {
+            return System.currentTimeMillis() - fetchedMillis;
+        }
+
+        /**
+         * @return estimated heap size, two bytes per char of the responses
+         */
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
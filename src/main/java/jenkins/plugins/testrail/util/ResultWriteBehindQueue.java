@@ -0,0 +1,406 @@
+package jenkins.plugins.testrail.util;
+
+import jenkins.plugins.testrail.auth.Authenticator;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Results from every build on this controller are grouped by the run they are
+ * posted to and sent as one add_results_for_cases request per batch. A run is
+ * flushed as soon as it holds a full batch, otherwise once its oldest result
+ * has waited maxDelayMillis.
+ *
+ * At most maxPending results are held; submit blocks until there is room, so
+ * a burst of builds slows down instead of growing the heap.
+ *
+ * Batches for one run may be posted concurrently. When a case has several
+ * results, which one TestRail ends up with as the latest is not guaranteed.
+ */
+public final class ResultWriteBehindQueue {
+
+    public static final int DEFAULT_MAX_BATCH = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2000;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+    public static final int DEFAULT_FLUSH_THREADS = 4;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultWriteBehindQueue.class);
+
+    private static final ResultWriteBehindQueue INSTANCE = new ResultWriteBehindQueue();
+
+    public static ResultWriteBehindQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sends one batch. Kept separate from the queue so tests can replace HTTP.
+     */
+    interface Poster {
+        /**
+         * @return true if TestRail accepted the results
+         */
+        boolean post(String url, Authenticator authenticator, String customHeader, List<TestRailResult> results,
+                     PrintStream logger) throws Exception;
+    }
+
+    private static final Poster HTTP_POSTER = new Poster() {
+        public boolean post(String url, Authenticator authenticator, String customHeader, List<TestRailResult> results,
+                            PrintStream logger) throws Exception {
+            final String body = TestRailJsonParser.createAddResultsJson(results);
+            final String httpResp = new HttpClientUtil().executePost(new SystemDefaultHttpClient(), authenticator,
+                    customHeader, url, logger, body, false);
+            return httpResp != null && !httpResp.isEmpty();
+        }
+    };
+
+    private final Object lock = new Object();
+    private final Map<String, RunQueue> runQueues = new HashMap<String, RunQueue>();
+    private final Poster poster;
+    private final ScheduledThreadPoolExecutor executor;
+    private int pending;
+
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+
+    private ResultWriteBehindQueue() {
+        this(HTTP_POSTER);
+    }
+
+    ResultWriteBehindQueue(Poster poster) {
+        this.poster = poster;
+        executor = new ScheduledThreadPoolExecutor(DEFAULT_FLUSH_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "TestRail result queue " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void configure(int maxBatch, long maxDelayMillis, int maxPending, int flushThreads) {
+        this.maxBatch = maxBatch > 0 ? maxBatch : DEFAULT_MAX_BATCH;
+        this.maxDelayMillis = maxDelayMillis >= 0 ? maxDelayMillis : DEFAULT_MAX_DELAY_MILLIS;
+        this.maxPending = maxPending > 0 ? maxPending : DEFAULT_MAX_PENDING;
+        executor.setCorePoolSize(flushThreads > 0 ? flushThreads : DEFAULT_FLUSH_THREADS);
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the flush threads. Only for queues created by tests; the shared
+     * instance lives as long as the controller.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue results for one run.
+     * @param addResultsQueryUrl add_results_for_cases URL including the run ID
+     * @param logger receives the output of every request carrying these results
+     * @return acknowledged once every result has been posted, or has failed to
+     * @throws InterruptedException if interrupted while waiting for room; the
+     * results already queued are dropped and the logger is not written to again
+     */
+    public Acknowledgement submit(String addResultsQueryUrl, Authenticator authenticator, String customHeader,
+                                  List<TestRailResult> results, PrintStream logger) throws InterruptedException {
+        final String key = addResultsQueryUrl + "|" + (authenticator == null ? "" : authenticator.getKeyName())
+                + "|" + (customHeader == null ? "" : customHeader);
+        final Acknowledgement acknowledgement = new Acknowledgement(this, key, results.size(), logger);
+        if (results.isEmpty()) {
+            return acknowledgement;
+        }
+
+        int from = 0;
+        while (from < results.size()) {
+            synchronized (lock) {
+                final int room = maxPending - pending;
+                if (room <= 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        cancel(acknowledgement);
+                        throw e;
+                    }
+                    continue;
+                }
+                final int to = Math.min(results.size(), from + room);
+                RunQueue runQueue = runQueues.get(key);
+                if (runQueue == null) {
+                    runQueue = new RunQueue(key, addResultsQueryUrl, authenticator, customHeader);
+                    runQueues.put(key, runQueue);
+                }
+                runQueue.slices.add(new Slice(acknowledgement, results.subList(from, to)));
+                runQueue.size += to - from;
+                pending += to - from;
+                from = to;
+
+                if (runQueue.size >= maxBatch) {
+                    executor.execute(new Flush(runQueue, false));
+                } else if (!runQueue.timerScheduled) {
+                    runQueue.timerScheduled = true;
+                    executor.schedule(new Flush(runQueue, true), maxDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        return acknowledgement;
+    }
+
+    /**
+     * Take up to maxBatch results from the front of a run queue. Caller holds the lock.
+     */
+    private List<Slice> take(RunQueue runQueue) {
+        final List<Slice> batch = new ArrayList<Slice>();
+        int size = 0;
+        while (size < maxBatch && !runQueue.slices.isEmpty()) {
+            final Slice slice = runQueue.slices.getFirst();
+            final int room = maxBatch - size;
+            if (slice.results.size() <= room) {
+                runQueue.slices.removeFirst();
+                batch.add(slice);
+                size += slice.results.size();
+            } else {
+                batch.add(new Slice(slice.acknowledgement, slice.results.subList(0, room)));
+                slice.results = slice.results.subList(room, slice.results.size());
+                size += room;
+            }
+        }
+        runQueue.size -= size;
+        pending -= size;
+        if (runQueue.size == 0 && !runQueue.timerScheduled) {
+            retire(runQueue);
+        }
+        lock.notifyAll();
+
+        return batch;
+    }
+
+    /**
+     * Forget an empty run queue unless a newer one has already replaced it. Caller holds the lock.
+     */
+    private void retire(RunQueue runQueue) {
+        if (runQueues.get(runQueue.key) == runQueue) {
+            runQueues.remove(runQueue.key);
+        }
+    }
+
+    /**
+     * Drop the results of an aborted build that have not been taken for
+     * posting yet. A batch already taken skips them, or if its request is
+     * already on the wire, at least stops writing to the build's log.
+     */
+    private void cancel(Acknowledgement acknowledgement) {
+        acknowledgement.cancel();
+        synchronized (lock) {
+            final RunQueue runQueue = runQueues.get(acknowledgement.key);
+            if (runQueue == null) {
+                return;
+            }
+            int removed = 0;
+            final Iterator<Slice> slices = runQueue.slices.iterator();
+            while (slices.hasNext()) {
+                final Slice slice = slices.next();
+                if (slice.acknowledgement == acknowledgement) {
+                    removed += slice.results.size();
+                    slices.remove();
+                }
+            }
+            runQueue.size -= removed;
+            pending -= removed;
+            if (runQueue.size == 0 && !runQueue.timerScheduled) {
+                retire(runQueue);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void post(RunQueue runQueue, List<Slice> batch) {
+        final List<TestRailResult> results = new ArrayList<TestRailResult>();
+        final Set<Acknowledgement> acknowledgements = new LinkedHashSet<Acknowledgement>();
+        for (Slice slice : batch) {
+            if (slice.acknowledgement.isCancelled()) {
+                continue;
+            }
+            results.addAll(slice.results);
+            acknowledgements.add(slice.acknowledgement);
+        }
+        if (results.isEmpty()) {
+            return;
+        }
+
+        // One request serves several builds, so its output is captured and copied to each of them
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final PrintStream capturedLogger = new PrintStream(captured);
+        boolean success = false;
+        try {
+            capturedLogger.println(String.format("add_results_for_cases: %d results from %d builds to %s",
+                    results.size(), acknowledgements.size(), runQueue.url));
+            success = poster.post(runQueue.url, runQueue.authenticator, runQueue.customHeader, results, capturedLogger);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to post queued results to " + runQueue.url, e);
+            capturedLogger.println("Caught exception... " + e.getMessage());
+        } finally {
+            capturedLogger.flush();
+            final String output = captured.toString();
+            for (Acknowledgement acknowledgement : acknowledgements) {
+                acknowledgement.log(output);
+            }
+            for (Slice slice : batch) {
+                slice.acknowledgement.complete(slice.results.size(), success);
+            }
+        }
+    }
+
+    private final class Flush implements Runnable {
+        private final RunQueue runQueue;
+        private final boolean timer;
+
+        private Flush(RunQueue runQueue, boolean timer) {
+            this.runQueue = runQueue;
+            this.timer = timer;
+        }
+
+        public void run() {
+            while (true) {
+                final List<Slice> batch;
+                synchronized (lock) {
+                    if (timer) {
+                        runQueue.timerScheduled = false;
+                    }
+                    // The size trigger only sends full batches; the rest waits for the timer
+                    if (runQueue.size == 0 || (!timer && runQueue.size < maxBatch)) {
+                        if (runQueue.size == 0 && !runQueue.timerScheduled) {
+                            retire(runQueue);
+                        } else if (runQueue.size > 0 && !runQueue.timerScheduled) {
+                            runQueue.timerScheduled = true;
+                            executor.schedule(new Flush(runQueue, true), maxDelayMillis, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    batch = take(runQueue);
+                }
+                post(runQueue, batch);
+            }
+        }
+    }
+
+    private static final class RunQueue {
+        private final String key;
+        private final String url;
+        private final Authenticator authenticator;
+        private final String customHeader;
+        private final LinkedList<Slice> slices = new LinkedList<Slice>();
+        private int size;
+        private boolean timerScheduled;
+
+        private RunQueue(String key, String url, Authenticator authenticator, String customHeader) {
+            this.key = key;
+            this.url = url;
+            this.authenticator = authenticator;
+            this.customHeader = customHeader;
+        }
+    }
+
+    private static final class Slice {
+        private final Acknowledgement acknowledgement;
+        private List<TestRailResult> results;
+
+        private Slice(Acknowledgement acknowledgement, List<TestRailResult> results) {
+            this.acknowledgement = acknowledgement;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Handed back to the submitting build, which waits on it.
+     */
+    public static final class Acknowledgement {
+        private final ResultWriteBehindQueue queue;
+        private final String key;
+        private final PrintStream logger;
+        private final AtomicInteger outstanding;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean cancelled;
+
+        private Acknowledgement(ResultWriteBehindQueue queue, String key, int results, PrintStream logger) {
+            this.queue = queue;
+            this.key = key;
+            this.logger = logger;
+            this.outstanding = new AtomicInteger(results);
+            if (results == 0) {
+                done.countDown();
+            }
+        }
+
+        private void complete(int results, boolean success) {
+            if (!success) {
+                failed.addAndGet(results);
+            }
+            if (outstanding.addAndGet(-results) == 0) {
+                done.countDown();
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            done.countDown();
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Holds the monitor while printing so that nothing reaches the build
+         * log once cancel has returned.
+         */
+        private synchronized void log(String output) {
+            if (!cancelled) {
+                logger.print(output);
+            }
+        }
+
+        /**
+         * @throws InterruptedException if interrupted, typically by an aborted
+         * build; its results still queued are dropped
+         */
+        public void await() throws InterruptedException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                queue.cancel(this);
+                throw e;
+            }
+        }
+
+        public int getFailedResults() {
+            return failed.get();
+        }
+
+        public boolean isSuccess() {
+            return done.getCount() == 0 && failed.get() == 0 && !isCancelled();
+        }
+    }
+}
@@ -18,6 +18,8 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * TODO: add Logger for jenkins.log logging
@@ -26,6 +28,10 @@ public class TestRailJsonParser {
 
     private String newTestPlanJsonString;
     private JSONObject newTestPlanJsonObject;
+    private final Set<String> unindexedSuiteIds = new LinkedHashSet<String>();
+    private int unindexedTests;
+    // Reused for every parse and created on first use; its lexer buffer is 32KB. Not thread safe, like the rest of this class.
+    private JSONParser jsonParser;
     private static final Logger LOGGER = LoggerFactory.getLogger(TestRailJsonParser.class);
 
     public TestRailJsonParser() {
@@ -33,6 +39,13 @@ public class TestRailJsonParser {
         this.newTestPlanJsonObject = new JSONObject();
     }
 
+    private JSONParser parser() {
+        if (jsonParser == null) {
+            jsonParser = new JSONParser();
+        }
+        return jsonParser;
+    }
+
     /**
      *
      * @param json
@@ -40,9 +53,9 @@ public class TestRailJsonParser {
      */
     public List<String> decodeGetPlanJSON(String json) {
         List<String> returnList = new ArrayList<String>();
-        System.out.println("Parsing json");
+        LOGGER.debug("Parsing json");
         try {
-            JSONObject rootJsonObject = (JSONObject)new JSONParser().parse(json);
+            JSONObject rootJsonObject = (JSONObject)parser().parse(json);
             JSONArray entriesJsonArray = (JSONArray)rootJsonObject.get("entries");
             for (Object entryObject : entriesJsonArray) {
                 JSONObject entryJsonObject = (JSONObject)entryObject;
@@ -53,8 +66,7 @@ public class TestRailJsonParser {
                 }
             }
         } catch (ParseException pe) {
-            System.out.println("Exception caught: " + pe.getPosition());
-            System.out.println(pe);
+            LOGGER.warn("Exception caught at position " + pe.getPosition(), pe);
         }
 
         return returnList;
@@ -68,9 +80,26 @@ public class TestRailJsonParser {
      * @return
      */
     public String createNewPlan(String oldPlanJson, Map<String, String> oldPlanTestsJson) throws ParseException {
+        return createNewPlan(oldPlanJson, oldPlanTestsJson, null);
+    }
+
+
+    /**
+     * Only cases in the selection for their suite are copied. Runs and entries
+     * left without any case are dropped. A case missing from the selection's
+     * index is copied and its suite reported by getUnindexedSuiteIds.
+     * @param oldPlanJson
+     * @param oldPlanTestsJson
+     * @param suiteSelections case selection keyed by suite_id, or null to copy every case
+     * @return
+     */
+    public String createNewPlan(String oldPlanJson, Map<String, String> oldPlanTestsJson,
+                                Map<String, CaseIndex.Selection> suiteSelections) throws ParseException {
         LOGGER.debug("createNewPlan() called.");
+        this.unindexedSuiteIds.clear();
+        this.unindexedTests = 0;
         LOGGER.debug(oldPlanJson);
-        final JSONObject oldRootJsonObject = (JSONObject)new JSONParser().parse(oldPlanJson);
+        final JSONObject oldRootJsonObject = (JSONObject)parser().parse(oldPlanJson);
 
         LOGGER.debug("Grabbing first JSON entries");
         final String testName = oldRootJsonObject.get("name").toString();
@@ -91,7 +120,9 @@ public class TestRailJsonParser {
             JSONObject oldEntryJsonObject = (JSONObject)oldEntryObject;
             JSONObject newEntryJsonObject = new JSONObject();
 
-            newEntryJsonObject.put("suite_id", oldEntryJsonObject.get("suite_id").toString());
+            final String suiteId = oldEntryJsonObject.get("suite_id").toString();
+            final CaseIndex.Selection selection = suiteSelections == null ? null : suiteSelections.get(suiteId);
+            newEntryJsonObject.put("suite_id", suiteId);
             newEntryJsonObject.put("include_all", false);
 
             JSONArray newCaseIdsArray = new JSONArray();
@@ -106,12 +137,25 @@ public class TestRailJsonParser {
                 JSONArray newRunConfigIdsArray = new JSONArray();
                 //newCaseIdsArray.add(((JSONObject) run_obj).get("id"));
                 String testId = oldRunJsonObj.get("id").toString();
-                JSONArray testJsonArray = (JSONArray)new JSONParser().parse(oldPlanTestsJson.get(testId));
+                JSONArray testJsonArray = (JSONArray)parser().parse(oldPlanTestsJson.get(testId));
                 for (Object testObject : testJsonArray) {
                     JSONObject testJsonObject = (JSONObject)testObject;
+                    if (selection != null) {
+                        if (!selection.isIndexed(testJsonObject.get("case_id"))) {
+                            // Newer than the cached index: keep it rather than drop it unseen
+                            this.unindexedSuiteIds.add(suiteId);
+                            this.unindexedTests++;
+                        } else if (!selection.contains(testJsonObject.get("case_id"))) {
+                            continue;
+                        }
+                    }
                     newCaseIdsArray.add(testJsonObject.get("case_id"));
                     newRunCaseIdsArray.add(testJsonObject.get("case_id"));
                 }
+                if (selection != null && newRunCaseIdsArray.isEmpty()) {
+                    LOGGER.debug("No selected cases in run " + testId + ", skipping");
+                    continue;
+                }
                 JSONArray oldConfigIdsJsonArray = (JSONArray)oldRunJsonObj.get("config_ids");
                 for (Object configIdObject : oldConfigIdsJsonArray) {
                     final String configIdString = configIdObject.toString();
@@ -125,6 +169,10 @@ public class TestRailJsonParser {
 
                 newRunsJsonArray.add(newRunJsonObj);
             }
+            if (selection != null && newRunsJsonArray.isEmpty()) {
+                LOGGER.debug("No selected cases in suite " + suiteId + ", skipping entry");
+                continue;
+            }
             newEntryJsonObject.put("case_ids", newCaseIdsArray);
             newEntryJsonObject.put("config_ids", newConfigIdsArray);
             newEntryJsonObject.put("runs", newRunsJsonArray);
@@ -141,20 +189,145 @@ public class TestRailJsonParser {
     }
 
 
+    /**
+     * @return suite IDs with cases that the last createNewPlan call found in
+     * the plan but not in the case index, so could not filter
+     */
+    public Set<String> getUnindexedSuiteIds() {
+        return this.unindexedSuiteIds;
+    }
+
+
+    /**
+     * @return number of tests copied by the last createNewPlan call without
+     * filtering because their case was not in the case index
+     */
+    public int getUnindexedTests() {
+        return this.unindexedTests;
+    }
+
+
+    /**
+     * The plan created by the last createNewPlan call without its entries, for
+     * creating the plan first and adding entries one at a time.
+     * @return
+     * @throws IllegalStateException if no plan has been created
+     */
+    public String createNewPlanShell() {
+        requireNewPlan();
+        JSONObject shellJsonObject = new JSONObject();
+        shellJsonObject.put("name", this.newTestPlanJsonObject.get("name"));
+        shellJsonObject.put("description", this.newTestPlanJsonObject.get("description"));
+        shellJsonObject.put("milestone_id", this.newTestPlanJsonObject.get("milestone_id"));
+
+        return shellJsonObject.toJSONString();
+    }
+
+
+    /**
+     * The entries of the plan created by the last createNewPlan call, each in
+     * add_plan_entry format.
+     * @return
+     * @throws IllegalStateException if no plan has been created
+     */
+    public List<String> getNewPlanEntries() {
+        requireNewPlan();
+        List<String> entries = new ArrayList<String>();
+        JSONArray entriesJsonArray = (JSONArray)this.newTestPlanJsonObject.get("entries");
+        if (entriesJsonArray != null) {
+            for (Object entryObject : entriesJsonArray) {
+                entries.add(((JSONObject)entryObject).toJSONString());
+            }
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * entries is only set once createNewPlan has completed, so a plan that
+     * failed half way is never posted as an empty one.
+     */
+    private void requireNewPlan() {
+        if (!this.newTestPlanJsonObject.containsKey("entries")) {
+            throw new IllegalStateException("createNewPlan has not completed");
+        }
+    }
+
+
+    /**
+     *
+     * @param entryJson
+     * @return
+     */
+    public String getEntrySuiteId(String entryJson) {
+        try {
+            JSONObject entryJsonObject = (JSONObject)parser().parse(entryJson);
+            return entryJsonObject.get("suite_id").toString();
+        } catch (ParseException pe) {
+            LOGGER.warn("Exception caught at position " + pe.getPosition(), pe);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Build the add_results_for_cases payload for one batch of results.
+     * Static so upload threads need neither a parser instance nor a lock.
+     * @param results
+     * @return
+     */
+    public static String createAddResultsJson(List<TestRailResult> results) {
+        JSONArray resultsJsonArray = new JSONArray();
+        for (TestRailResult result : results) {
+            JSONObject resultJsonObject = new JSONObject();
+            resultJsonObject.put("case_id", result.getCaseId());
+            resultJsonObject.put("status_id", result.getStatusId());
+            if (result.getElapsed() != null) {
+                resultJsonObject.put("elapsed", result.getElapsed());
+            }
+            if (result.getComment() != null) {
+                resultJsonObject.put("comment", result.getComment());
+            }
+            resultsJsonArray.add(resultJsonObject);
+        }
+        JSONObject rootJsonObject = new JSONObject();
+        rootJsonObject.put("results", resultsJsonArray);
+
+        return rootJsonObject.toJSONString();
+    }
+
+
+    /**
+     *
+     * @param json
+     * @return distinct suite IDs of the plan entries
+     */
+    public Set<String> getSuiteIds(String json) throws ParseException {
+        Set<String> suiteIds = new LinkedHashSet<String>();
+        JSONObject rootJsonObject = (JSONObject)parser().parse(json);
+        JSONArray entriesJsonArray = (JSONArray)rootJsonObject.get("entries");
+        for (Object entryObject : entriesJsonArray) {
+            suiteIds.add(((JSONObject)entryObject).get("suite_id").toString());
+        }
+
+        return suiteIds;
+    }
+
+
     /**
      *
      * @param json
      * @return
      */
     public String getProjectId(String json) {
-        List<String> returnList = new ArrayList<String>();
-        System.out.println("Parsing json");
+        LOGGER.debug("Parsing json");
         try {
-            JSONObject rootJsonObject = (JSONObject)new JSONParser().parse(json);
+            JSONObject rootJsonObject = (JSONObject)parser().parse(json);
             return rootJsonObject.get("project_id").toString();
         } catch (ParseException pe) {
-            System.out.println("Exception caught: " + pe.getPosition());
-            System.out.println(pe);
+            LOGGER.warn("Exception caught at position " + pe.getPosition(), pe);
         }
 
         return null;
@@ -166,14 +339,12 @@ public class TestRailJsonParser {
      * @return
      */
     public String getNewPlanId(String json) {
-        List<String> returnList = new ArrayList<String>();
-        System.out.println("Parsing json");
+        LOGGER.debug("Parsing json");
         try {
-            JSONObject rootJsonObject = (JSONObject)new JSONParser().parse(json);
+            JSONObject rootJsonObject = (JSONObject)parser().parse(json);
             return rootJsonObject.get("id").toString();
         } catch (ParseException pe) {
-            System.out.println("Exception caught: " + pe.getPosition());
-            System.out.println(pe);
+            LOGGER.warn("Exception caught at position " + pe.getPosition(), pe);
         }
 
         return null;
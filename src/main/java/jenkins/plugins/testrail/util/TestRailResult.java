@@ -0,0 +1,63 @@
+package jenkins.plugins.testrail.util;
+
+import java.io.Serializable;
+
+/**
+ * One result destined for add_results_for_cases. Kept small because a single
+ * report may produce hundreds of thousands of these on the agent.
+ */
+public class TestRailResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_PASSED = 1;
+    public static final int STATUS_BLOCKED = 2;
+    public static final int STATUS_FAILED = 5;
+
+    private final long caseId;
+    private final int statusId;
+    private final long elapsedSeconds;
+    private final String comment;
+
+    public TestRailResult(long caseId, int statusId, long elapsedSeconds, String comment) {
+        this.caseId = caseId;
+        this.statusId = statusId;
+        this.elapsedSeconds = elapsedSeconds;
+        this.comment = comment;
+    }
+
+    public long getCaseId() {
+        return caseId;
+    }
+
+    public int getStatusId() {
+        return statusId;
+    }
+
+    public long getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * TestRail rejects a zero timespan, so anything under a second is left out.
+     * @return elapsed time in TestRail timespan format, or null
+     */
+    public String getElapsed() {
+        if (elapsedSeconds < 1) {
+            return null;
+        }
+        final long minutes = elapsedSeconds / 60;
+        final long seconds = elapsedSeconds % 60;
+        if (minutes == 0) {
+            return seconds + "s";
+        }
+        if (seconds == 0) {
+            return minutes + "m";
+        }
+        return minutes + "m " + seconds + "s";
+    }
+}
@@ -0,0 +1,204 @@
+package jenkins.plugins.testrail.util;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Runs on the agent that owns the workspace so only the compact results cross
+ * the channel. The report is read with StAX, never as a whole document.
+ *
+ * JUnit:  testcase elements, failed on a nested failure or error, dropped on skipped.
+ * TestNG: test-method elements, status PASS/FAIL/SKIP, configuration methods ignored.
+ *
+ * Case IDs are taken from the test name using caseIdPattern; the first capture
+ * group of every match is one case ID, so "C12 C13 login" reports two cases.
+ * A match whose group is empty or not a number is logged and skipped.
+ */
+public class TestReportParser implements FilePath.FileCallable<List<TestRailResult>> {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String DEFAULT_CASE_ID_PATTERN = "C(\\d+)";
+
+    static final int MAX_COMMENT_LENGTH = 1000;
+    private static final int MAX_LOGGED_SKIPS = 10;
+
+    private final String caseIdPattern;
+    private final TaskListener listener;
+
+    public TestReportParser(String caseIdPattern, TaskListener listener) {
+        this.caseIdPattern = (caseIdPattern == null || caseIdPattern.isEmpty()) ? DEFAULT_CASE_ID_PATTERN : caseIdPattern;
+        this.listener = listener;
+    }
+
+    /**
+     * Check that a case ID pattern compiles and has a capture group. Matches
+     * whose group is not a number are skipped while parsing.
+     * @param caseIdPattern
+     * @return a description of the problem, or null if the pattern is usable
+     */
+    public static String checkCaseIdPattern(String caseIdPattern) {
+        try {
+            if (Pattern.compile(caseIdPattern).matcher("").groupCount() < 1) {
+                return "The pattern must have a capture group for the case ID, eg: C(\\d+)";
+            }
+        } catch (PatternSyntaxException e) {
+            return "Invalid pattern: " + e.getDescription();
+        }
+        return null;
+    }
+
+    public List<TestRailResult> invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return parse(in, listener.getLogger());
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse test report " + file + ": " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public List<TestRailResult> parse(InputStream in, PrintStream logger) throws XMLStreamException {
+        final List<TestRailResult> results = new ArrayList<TestRailResult>();
+        int skipped = 0;
+        final Pattern pattern = Pattern.compile(caseIdPattern);
+
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        final XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+        String name = null;
+        int statusId = 0;
+        long elapsedSeconds = 0;
+        String comment = null;
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String element = reader.getLocalName();
+                    if ("testcase".equals(element)) {
+                        name = reader.getAttributeValue(null, "name");
+                        statusId = TestRailResult.STATUS_PASSED;
+                        elapsedSeconds = parseSeconds(reader.getAttributeValue(null, "time"));
+                        comment = null;
+                    } else if ("test-method".equals(element)) {
+                        if ("true".equals(reader.getAttributeValue(null, "is-config"))) {
+                            name = null;
+                            continue;
+                        }
+                        name = reader.getAttributeValue(null, "name");
+                        final String description = reader.getAttributeValue(null, "description");
+                        if (description != null) {
+                            name = name + " " + description;
+                        }
+                        statusId = testNgStatus(reader.getAttributeValue(null, "status"));
+                        elapsedSeconds = parseMillis(reader.getAttributeValue(null, "duration-ms"));
+                        comment = null;
+                    } else if (name != null && ("failure".equals(element) || "error".equals(element))) {
+                        statusId = TestRailResult.STATUS_FAILED;
+                        comment = truncate(reader.getAttributeValue(null, "message"));
+                    } else if (name != null && "skipped".equals(element)) {
+                        statusId = 0;
+                    } else if (name != null && "exception".equals(element)) {
+                        comment = truncate(reader.getAttributeValue(null, "class"));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String element = reader.getLocalName();
+                    if (name != null && ("testcase".equals(element) || "test-method".equals(element))) {
+                        if (statusId != 0) {
+                            final Matcher matcher = pattern.matcher(name);
+                            while (matcher.find()) {
+                                final long caseId = parseCaseId(matcher.group(1));
+                                if (caseId > 0) {
+                                    results.add(new TestRailResult(caseId, statusId, elapsedSeconds, comment));
+                                } else if (++skipped <= MAX_LOGGED_SKIPS) {
+                                    logger.println(String.format("Skipping \"%s\" in test \"%s\": not a case ID", matcher.group(), name));
+                                }
+                            }
+                        }
+                        name = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (skipped > MAX_LOGGED_SKIPS) {
+            logger.println(String.format("Skipped %d matches of %s that were not case IDs", skipped, caseIdPattern));
+        }
+
+        return results;
+    }
+
+    /**
+     * @return the case ID, or 0 if the group did not capture a positive number
+     */
+    private static long parseCaseId(String group) {
+        if (group == null || group.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(group);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int testNgStatus(String status) {
+        if ("PASS".equals(status)) {
+            return TestRailResult.STATUS_PASSED;
+        }
+        if ("FAIL".equals(status)) {
+            return TestRailResult.STATUS_FAILED;
+        }
+        return 0;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.round(Double.parseDouble(value.replace(",", "")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseMillis(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value) / 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String truncate(String value) {
+        if (value == null || value.length() <= MAX_COMMENT_LENGTH) {
+            return value;
+        }
+        return value.substring(0, MAX_COMMENT_LENGTH);
+    }
+}
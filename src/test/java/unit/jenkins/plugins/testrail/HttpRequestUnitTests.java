@@ -29,4 +29,20 @@ public class HttpRequestUnitTests {
         // TODO: A lot of mocking.
     }
 
+    @Test
+    public final void testRetryDelayFollowsRetryAfter() {
+        assertEquals(7000, HttpRequest.retryDelayMillis(7, 1));
+        assertEquals(0, HttpRequest.retryDelayMillis(0, 2));
+    }
+
+    @Test
+    public final void testRetryDelayBacksOffExponentially() {
+        for (int i = 0; i < 20; i++) {
+            long first = HttpRequest.retryDelayMillis(-1, 1);
+            long second = HttpRequest.retryDelayMillis(-1, 2);
+            assertTrue(first >= 2000 && first <= 3000);
+            assertTrue(second >= 4000 && second <= 6000);
+        }
+    }
+
 }
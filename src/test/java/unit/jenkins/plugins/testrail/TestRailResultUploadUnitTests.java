@@ -0,0 +1,61 @@
+package jenkins.plugins.testrail;
+
+import jenkins.plugins.testrail.util.TestRailResult;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class TestRailResultUploadUnitTests {
+
+    private static TestRailResult result(long caseId, int statusId) {
+        return new TestRailResult(caseId, statusId, 0, null);
+    }
+
+    @Test
+    public final void testResultsForOneCaseShareABatch() {
+        List<TestRailResult> results = new ArrayList<TestRailResult>();
+        results.add(result(3, TestRailResult.STATUS_PASSED));
+        results.add(result(1, TestRailResult.STATUS_PASSED));
+        results.add(result(2, TestRailResult.STATUS_PASSED));
+        results.add(result(1, TestRailResult.STATUS_FAILED));
+        results.add(result(4, TestRailResult.STATUS_PASSED));
+
+        List<List<TestRailResult>> batches = TestRailResultUpload.batchByCase(results, 2);
+
+        assertEquals(3, batches.size());
+        assertEquals(2, batches.get(0).size());
+        // Report order within a case is kept, so the later failure is applied last
+        assertEquals(1, batches.get(0).get(0).getCaseId());
+        assertEquals(TestRailResult.STATUS_PASSED, batches.get(0).get(0).getStatusId());
+        assertEquals(1, batches.get(0).get(1).getCaseId());
+        assertEquals(TestRailResult.STATUS_FAILED, batches.get(0).get(1).getStatusId());
+        assertEquals(2, batches.get(1).size());
+        assertEquals(1, batches.get(2).size());
+        assertEquals(4, batches.get(2).get(0).getCaseId());
+    }
+
+    @Test
+    public final void testCaseWithMoreResultsThanABatchGetsItsOwn() {
+        List<TestRailResult> results = new ArrayList<TestRailResult>();
+        results.add(result(1, TestRailResult.STATUS_PASSED));
+        for (int i = 0; i < 3; i++) {
+            results.add(result(2, TestRailResult.STATUS_PASSED));
+        }
+        results.add(result(3, TestRailResult.STATUS_PASSED));
+
+        List<List<TestRailResult>> batches = TestRailResultUpload.batchByCase(results, 2);
+
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(3, batches.get(1).size());
+        for (TestRailResult result : batches.get(1)) {
+            assertEquals(2, result.getCaseId());
+        }
+        assertEquals(1, batches.get(2).size());
+    }
+
+}
@@ -0,0 +1,84 @@
+package jenkins.plugins.testrail.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CaseFilterUnitTests {
+
+    private static final String CASES_JSON = "["
+            + "{\"id\":1,\"priority_id\":4,\"type_id\":1,\"section_id\":10,\"custom_platforms\":[1,2]},"
+            + "{\"id\":2,\"priority_id\":3,\"type_id\":7,\"section_id\":10,\"custom_platforms\":[2]},"
+            + "{\"id\":3,\"priority_id\":2,\"type_id\":1,\"section_id\":11,\"custom_platforms\":[]},"
+            + "{\"id\":4,\"priority_id\":4,\"type_id\":1,\"section_id\":11,\"custom_platforms\":[3]}"
+            + "]";
+
+    private CaseIndex.Selection select(String expression) throws Exception {
+        CaseFilter filter = new CaseFilter(expression);
+        CaseIndex index = new CaseIndex(filter.getFields());
+        assertNull(index.addPage(CASES_JSON));
+        return filter.evaluate(index);
+    }
+
+    @Test
+    public final void testAnyOfValues() throws Exception {
+        CaseIndex.Selection selection = select("priority=3,4");
+        assertEquals(3, selection.size());
+        assertTrue(selection.contains(1L));
+        assertTrue(selection.contains(2L));
+        assertFalse(selection.contains(3L));
+        assertTrue(selection.contains(4L));
+    }
+
+    @Test
+    public final void testTermsAreAndedAndNegated() throws Exception {
+        CaseIndex.Selection selection = select("priority=3,4; type!=7; section_id=10");
+        assertEquals(1, selection.size());
+        assertTrue(selection.contains(1L));
+    }
+
+    @Test
+    public final void testMultiSelectField() throws Exception {
+        CaseIndex.Selection selection = select("custom_platforms=2");
+        assertEquals(2, selection.size());
+        assertTrue(selection.contains("1"));
+        assertTrue(selection.contains("2"));
+        assertFalse(selection.contains(99L));
+    }
+
+    @Test
+    public final void testPagedResponse() throws Exception {
+        CaseIndex index = new CaseIndex(new CaseFilter("priority=4").getFields());
+        String next = index.addPage("{\"_links\":{\"next\":\"/api/v2/get_cases/1&offset=1\"},\"cases\":[{\"id\":5,\"priority_id\":4}]}");
+        assertEquals("/api/v2/get_cases/1&offset=1", next);
+        assertNull(index.addPage("{\"_links\":{\"next\":null},\"cases\":[{\"id\":6,\"priority_id\":1}]}"));
+        assertEquals(2, index.size());
+        assertEquals(1, new CaseFilter("priority=4").evaluate(index).size());
+    }
+
+    @Test
+    public final void testMisspeltFieldIsNotPresent() throws Exception {
+        CaseFilter filter = new CaseFilter("prority=4; custom_platforms=2");
+        CaseIndex index = new CaseIndex(filter.getFields());
+        index.addPage(CASES_JSON);
+        assertFalse(index.hasField("prority"));
+        assertTrue(index.hasField("custom_platforms"));
+        assertEquals(0, filter.evaluate(index).size());
+    }
+
+    @Test
+    public final void testCaseMissingFromIndexIsNotIndexed() throws Exception {
+        CaseIndex.Selection selection = select("type!=7");
+        assertTrue(selection.isIndexed(1L));
+        assertTrue(selection.isIndexed("2"));
+        assertFalse(selection.isIndexed(5L));
+        assertFalse(selection.contains(5L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testInvalidTerm() {
+        new CaseFilter("priority");
+    }
+
+}
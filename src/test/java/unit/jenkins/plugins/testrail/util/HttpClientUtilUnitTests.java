@@ -0,0 +1,101 @@
+package jenkins.plugins.testrail.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.impl.cookie.DateUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Date;
+
+
+public class HttpClientUtilUnitTests {
+
+    private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+    private HttpClientUtil.PostResponse postTo(int status) throws Exception {
+        return postTo(status, null);
+    }
+
+    private HttpClientUtil.PostResponse postTo(final int status, final String retryAfter) throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final InputStream requestBody = exchange.getRequestBody();
+                while (requestBody.read(new byte[1024]) >= 0) {
+                    // drain
+                }
+                final byte[] body = "{\"id\":1}".getBytes("UTF-8");
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            return new HttpClientUtil().executePostForResponse(new SystemDefaultHttpClient(), null, null,
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/add_plan_entry/1", logger, "{}", false);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public final void testSuccess() throws Exception {
+        HttpClientUtil.PostResponse response = postTo(200);
+        assertTrue(response.isSuccess());
+        assertEquals("{\"id\":1}", response.getBody());
+        assertFalse(response.isRetryable());
+    }
+
+    @Test
+    public final void testOnlyUnprocessedRequestsAreRetryable() throws Exception {
+        assertTrue(postTo(429).isRetryable());
+        assertTrue(postTo(503).isRetryable());
+
+        HttpClientUtil.PostResponse badRequest = postTo(400);
+        assertFalse(badRequest.isSuccess());
+        assertEquals(400, badRequest.getStatusCode());
+        assertFalse(badRequest.isRetryable());
+        assertFalse(postTo(500).isRetryable());
+    }
+
+    @Test
+    public final void testRetryAfter() throws Exception {
+        assertEquals(-1, postTo(429).getRetryAfterSeconds());
+        assertEquals(5, postTo(429, "5").getRetryAfterSeconds());
+        assertEquals(-1, postTo(503, "soon").getRetryAfterSeconds());
+
+        long seconds = postTo(503, DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000))).getRetryAfterSeconds();
+        assertTrue(seconds >= 28 && seconds <= 31);
+        assertEquals(0, postTo(503, DateUtils.formatDate(new Date(0))).getRetryAfterSeconds());
+    }
+
+    @Test
+    public final void testConnectionFailureIsRetryable() throws Exception {
+        // A port that was just free; nothing listens on it any more
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final int port = socket.getLocalPort();
+        socket.close();
+
+        HttpClientUtil.PostResponse response = new HttpClientUtil().executePostForResponse(new SystemDefaultHttpClient(),
+                null, null, "http://127.0.0.1:" + port + "/add_plan_entry/1", logger, "{}", false);
+        assertFalse(response.isSuccess());
+        assertNotNull(response.getException());
+        assertTrue(response.isRetryable());
+    }
+
+}
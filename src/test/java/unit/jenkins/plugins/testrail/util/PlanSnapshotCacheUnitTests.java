@@ -0,0 +1,102 @@
+package jenkins.plugins.testrail.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class PlanSnapshotCacheUnitTests {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    @Before
+    @After
+    public void clearCache() {
+        PlanSnapshotCache.clear();
+    }
+
+    /**
+     * @return a snapshot of exactly bytes estimated bytes
+     */
+    private static PlanSnapshotCache.Snapshot snapshot(int bytes) {
+        final Map<String, String> testsJson = new HashMap<String, String>();
+        testsJson.put("1", "[]");
+        final StringBuilder planJson = new StringBuilder();
+        for (int i = 0; i < bytes / 2 - 3; i++) {
+            planJson.append(' ');
+        }
+        final PlanSnapshotCache.Snapshot snapshot = new PlanSnapshotCache.Snapshot(planJson.toString(), testsJson, true);
+        assertEquals(bytes, snapshot.getBytes());
+        return snapshot;
+    }
+
+    @Test
+    public final void testOldestSnapshotsAreEvictedFirst() {
+        PlanSnapshotCache.put("a", snapshot(400), 1000);
+        PlanSnapshotCache.put("b", snapshot(400), 1000);
+        assertEquals(800, PlanSnapshotCache.getBytes());
+
+        PlanSnapshotCache.put("c", snapshot(400), 1000);
+        assertNull(PlanSnapshotCache.get("a", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("b", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("c", HOUR_MILLIS));
+        assertEquals(800, PlanSnapshotCache.getBytes());
+
+        // A refetch moves the plan to the back, so b is now the oldest
+        PlanSnapshotCache.put("c", snapshot(200), 1000);
+        PlanSnapshotCache.put("d", snapshot(600), 1000);
+        assertNull(PlanSnapshotCache.get("b", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("c", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("d", HOUR_MILLIS));
+        assertEquals(800, PlanSnapshotCache.getBytes());
+    }
+
+    @Test
+    public final void testSnapshotLargerThanCapIsNotCached() {
+        PlanSnapshotCache.put("a", snapshot(400), 1000);
+        PlanSnapshotCache.put("b", snapshot(1200), 1000);
+
+        assertNull(PlanSnapshotCache.get("b", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("a", HOUR_MILLIS));
+        assertEquals(400, PlanSnapshotCache.getBytes());
+
+        // An oversized refetch still drops the stale copy
+        PlanSnapshotCache.put("a", snapshot(1200), 1000);
+        assertNull(PlanSnapshotCache.get("a", HOUR_MILLIS));
+        assertEquals(0, PlanSnapshotCache.getBytes());
+    }
+
+    @Test
+    public final void testBytesAfterRetainAllAndClear() {
+        PlanSnapshotCache.put("a", snapshot(100), 1000);
+        PlanSnapshotCache.put("b", snapshot(200), 1000);
+        PlanSnapshotCache.put("c", snapshot(300), 1000);
+
+        PlanSnapshotCache.retainAll(Arrays.asList("b", "unknown"));
+        assertNull(PlanSnapshotCache.get("a", HOUR_MILLIS));
+        assertNotNull(PlanSnapshotCache.get("b", HOUR_MILLIS));
+        assertNull(PlanSnapshotCache.get("c", HOUR_MILLIS));
+        assertEquals(200, PlanSnapshotCache.getBytes());
+
+        PlanSnapshotCache.clear();
+        assertNull(PlanSnapshotCache.get("b", HOUR_MILLIS));
+        assertEquals(0, PlanSnapshotCache.getBytes());
+    }
+
+    @Test
+    public final void testGetRejectsSnapshotsOlderThanMaxAge() throws Exception {
+        PlanSnapshotCache.put("a", snapshot(100), 1000);
+        Thread.sleep(50);
+
+        assertNull(PlanSnapshotCache.get("a", 10));
+        assertNotNull(PlanSnapshotCache.get("a", HOUR_MILLIS));
+        assertEquals(100, PlanSnapshotCache.getBytes());
+    }
+
+}
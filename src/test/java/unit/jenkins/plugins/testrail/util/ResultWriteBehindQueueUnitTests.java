@@ -0,0 +1,190 @@
+package jenkins.plugins.testrail.util;
+
+import jenkins.plugins.testrail.auth.Authenticator;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class ResultWriteBehindQueueUnitTests {
+
+    private static final String URL = "http://testrail/index.php?/api/v2/add_results_for_cases/1";
+
+    private final BlockingQueue<List<TestRailResult>> posted = new LinkedBlockingQueue<List<TestRailResult>>();
+    private final ResultWriteBehindQueue queue = new ResultWriteBehindQueue(new ResultWriteBehindQueue.Poster() {
+        public boolean post(String url, Authenticator authenticator, String customHeader, List<TestRailResult> results,
+                            PrintStream logger) {
+            logger.println("posted " + results.size());
+            posted.add(new ArrayList<TestRailResult>(results));
+            return true;
+        }
+    });
+
+    @After
+    public void shutdownQueue() {
+        queue.shutdown();
+    }
+
+    private static List<TestRailResult> results(int firstCaseId, int count) {
+        final List<TestRailResult> results = new ArrayList<TestRailResult>();
+        for (int i = 0; i < count; i++) {
+            results.add(new TestRailResult(firstCaseId + i, TestRailResult.STATUS_PASSED, 0, null));
+        }
+        return results;
+    }
+
+    private static PrintStream logger() {
+        return new PrintStream(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public final void testFullBatchIsPostedImmediately() throws Exception {
+        queue.configure(10, 60000, 100, 1);
+
+        ResultWriteBehindQueue.Acknowledgement acknowledgement = queue.submit(URL, null, null, results(1, 10), logger());
+
+        List<TestRailResult> batch = posted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(10, batch.size());
+        acknowledgement.await();
+        assertTrue(acknowledgement.isSuccess());
+    }
+
+    @Test
+    public final void testPartialBatchWaitsForMaxDelay() throws Exception {
+        queue.configure(100, 500, 1000, 1);
+
+        final long start = System.currentTimeMillis();
+        ResultWriteBehindQueue.Acknowledgement acknowledgement = queue.submit(URL, null, null, results(1, 3), logger());
+
+        List<TestRailResult> batch = posted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertTrue(System.currentTimeMillis() - start >= 450);
+        assertEquals(3, batch.size());
+        acknowledgement.await();
+        assertTrue(acknowledgement.isSuccess());
+    }
+
+    @Test
+    public final void testTwoBuildsShareOneRequest() throws Exception {
+        queue.configure(10, 60000, 100, 1);
+        ByteArrayOutputStream firstLog = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondLog = new ByteArrayOutputStream();
+
+        ResultWriteBehindQueue.Acknowledgement first = queue.submit(URL, null, null, results(1, 4), new PrintStream(firstLog));
+        ResultWriteBehindQueue.Acknowledgement second = queue.submit(URL, null, null, results(5, 6), new PrintStream(secondLog));
+
+        List<TestRailResult> batch = posted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(10, batch.size());
+        first.await();
+        second.await();
+        assertTrue(first.isSuccess());
+        assertTrue(second.isSuccess());
+        assertTrue(posted.isEmpty());
+        assertTrue(firstLog.toString().contains("posted 10"));
+        assertTrue(secondLog.toString().contains("posted 10"));
+    }
+
+    @Test
+    public final void testSubmitBlocksAtMaxPending() throws Exception {
+        queue.configure(100, 500, 5, 1);
+        queue.submit(URL, null, null, results(1, 5), logger());
+
+        final AtomicReference<ResultWriteBehindQueue.Acknowledgement> blocked =
+                new AtomicReference<ResultWriteBehindQueue.Acknowledgement>();
+        Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    blocked.set(queue.submit(URL, null, null, results(6, 3), logger()));
+                } catch (InterruptedException e) {
+                    // the test fails on the null acknowledgement
+                }
+            }
+        });
+        submitter.start();
+        for (int i = 0; i < 100 && submitter.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, submitter.getState());
+        assertNull(blocked.get());
+
+        // The timer flush of the first five makes room
+        submitter.join(5000);
+        assertNotNull(blocked.get());
+        blocked.get().await();
+        assertTrue(blocked.get().isSuccess());
+        assertEquals(5, posted.poll(5, TimeUnit.SECONDS).size());
+        assertEquals(3, posted.poll(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public final void testInterruptedAwaitDropsQueuedResults() throws Exception {
+        queue.configure(100, 1000, 1000, 1);
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final ResultWriteBehindQueue.Acknowledgement acknowledgement =
+                queue.submit(URL, null, null, results(1, 3), new PrintStream(log));
+
+        final AtomicReference<InterruptedException> interrupted = new AtomicReference<InterruptedException>();
+        Thread build = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    acknowledgement.await();
+                } catch (InterruptedException e) {
+                    interrupted.set(e);
+                }
+            }
+        });
+        build.start();
+        build.interrupt();
+        build.join(5000);
+
+        assertNotNull(interrupted.get());
+        assertFalse(acknowledgement.isSuccess());
+        assertNull(posted.poll(1500, TimeUnit.MILLISECONDS));
+        assertEquals("", log.toString());
+    }
+
+    @Test
+    public final void testInterruptedSubmitDropsQueuedResults() throws Exception {
+        queue.configure(100, 500, 5, 1);
+        queue.submit(URL, null, null, results(1, 3), logger());
+
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final AtomicReference<InterruptedException> interrupted = new AtomicReference<InterruptedException>();
+        Thread build = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.submit(URL, null, null, results(10, 5), new PrintStream(log));
+                } catch (InterruptedException e) {
+                    interrupted.set(e);
+                }
+            }
+        });
+        build.start();
+        for (int i = 0; i < 100 && build.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        build.interrupt();
+        build.join(5000);
+        assertNotNull(interrupted.get());
+
+        // Only the first build's results go out; the two that fitted before the wait are dropped
+        List<TestRailResult> batch = posted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(3, batch.size());
+        assertNull(posted.poll(1000, TimeUnit.MILLISECONDS));
+        assertEquals("", log.toString());
+    }
+
+}
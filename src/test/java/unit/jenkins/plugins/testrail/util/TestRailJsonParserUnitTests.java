@@ -0,0 +1,158 @@
+package jenkins.plugins.testrail.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class TestRailJsonParserUnitTests {
+
+    // Suite 10 has runs 100 and 101 in two configurations, suite 11 has run 102
+    private static final String PLAN_JSON = "{\"id\":1,\"name\":\"Nightly\",\"description\":\"Base plan\","
+            + "\"milestone_id\":7,\"project_id\":3,\"entries\":["
+            + "{\"id\":\"e1\",\"suite_id\":10,\"runs\":[{\"id\":100,\"config_ids\":[1]},{\"id\":101,\"config_ids\":[2]}]},"
+            + "{\"id\":\"e2\",\"suite_id\":11,\"runs\":[{\"id\":102,\"config_ids\":[3]}]}]}";
+
+    private static Map<String, String> testsJson() {
+        Map<String, String> testsJson = new HashMap<String, String>();
+        testsJson.put("100", "[{\"id\":1000,\"case_id\":1},{\"id\":1001,\"case_id\":2}]");
+        testsJson.put("101", "[{\"id\":1010,\"case_id\":3}]");
+        testsJson.put("102", "[{\"id\":1020,\"case_id\":4}]");
+        return testsJson;
+    }
+
+    private static CaseIndex.Selection select(String filterExpression, String casesJson) throws Exception {
+        CaseFilter filter = new CaseFilter(filterExpression);
+        CaseIndex index = new CaseIndex(filter.getFields());
+        index.addPage(casesJson);
+        return filter.evaluate(index);
+    }
+
+    private static JSONObject parse(String json) throws Exception {
+        return (JSONObject) new JSONParser().parse(json);
+    }
+
+    @Test
+    public final void testCreateAddResultsJson() throws Exception {
+        List<TestRailResult> results = new ArrayList<TestRailResult>();
+        results.add(new TestRailResult(1, TestRailResult.STATUS_PASSED, 0, null));
+        results.add(new TestRailResult(2, TestRailResult.STATUS_FAILED, 65, "boom"));
+
+        JSONArray resultsJsonArray = (JSONArray) parse(TestRailJsonParser.createAddResultsJson(results)).get("results");
+
+        JSONObject passed = (JSONObject) resultsJsonArray.get(0);
+        assertEquals(1L, passed.get("case_id"));
+        assertEquals(1L, passed.get("status_id"));
+        assertFalse(passed.containsKey("elapsed"));
+        assertFalse(passed.containsKey("comment"));
+
+        JSONObject failed = (JSONObject) resultsJsonArray.get(1);
+        assertEquals(2L, failed.get("case_id"));
+        assertEquals(5L, failed.get("status_id"));
+        assertEquals("1m 5s", failed.get("elapsed"));
+        assertEquals("boom", failed.get("comment"));
+    }
+
+    @Test
+    public final void testCaseMissingFromIndexIsKept() throws Exception {
+        Map<String, CaseIndex.Selection> suiteSelections = new HashMap<String, CaseIndex.Selection>();
+        // Case 2 was added to suite 10 after its index was built
+        suiteSelections.put("10", select("type!=7", "[{\"id\":1,\"type_id\":1},{\"id\":3,\"type_id\":7}]"));
+        suiteSelections.put("11", select("type!=7", "[{\"id\":4,\"type_id\":1}]"));
+
+        TestRailJsonParser testRailJsonParser = new TestRailJsonParser();
+        JSONObject plan = parse(testRailJsonParser.createNewPlan(PLAN_JSON, testsJson(), suiteSelections));
+
+        JSONObject entry = (JSONObject) ((JSONArray) plan.get("entries")).get(0);
+        assertEquals("[1,2]", entry.get("case_ids").toString());
+        assertEquals("[10]", testRailJsonParser.getUnindexedSuiteIds().toString());
+        assertEquals(1, testRailJsonParser.getUnindexedTests());
+
+        // A rebuilt index knows the case, so the next plan is filtered normally
+        suiteSelections.put("10", select("type!=7", "[{\"id\":1,\"type_id\":1},{\"id\":2,\"type_id\":7},{\"id\":3,\"type_id\":7}]"));
+        plan = parse(testRailJsonParser.createNewPlan(PLAN_JSON, testsJson(), suiteSelections));
+        entry = (JSONObject) ((JSONArray) plan.get("entries")).get(0);
+        assertEquals("[1]", entry.get("case_ids").toString());
+        assertTrue(testRailJsonParser.getUnindexedSuiteIds().isEmpty());
+    }
+
+    @Test
+    public final void testCreateNewPlanPrunesUnselectedCases() throws Exception {
+        Map<String, CaseIndex.Selection> suiteSelections = new HashMap<String, CaseIndex.Selection>();
+        suiteSelections.put("10", select("priority=4",
+                "[{\"id\":1,\"priority_id\":4},{\"id\":2,\"priority_id\":1},{\"id\":3,\"priority_id\":1}]"));
+        suiteSelections.put("11", select("priority=4", "[{\"id\":4,\"priority_id\":1}]"));
+
+        TestRailJsonParser testRailJsonParser = new TestRailJsonParser();
+        JSONObject plan = parse(testRailJsonParser.createNewPlan(PLAN_JSON, testsJson(), suiteSelections));
+
+        // Suite 11 has no selected case, so its entry is dropped
+        JSONArray entries = (JSONArray) plan.get("entries");
+        assertEquals(1, entries.size());
+        JSONObject entry = (JSONObject) entries.get(0);
+        assertEquals("10", entry.get("suite_id").toString());
+        assertEquals("[1]", entry.get("case_ids").toString());
+
+        // Run 101 only had case 3, so it is dropped from the entry
+        JSONArray runs = (JSONArray) entry.get("runs");
+        assertEquals(1, runs.size());
+        JSONObject run = (JSONObject) runs.get(0);
+        assertEquals("[1]", run.get("case_ids").toString());
+        assertEquals("[\"1\"]", run.get("config_ids").toString());
+        assertTrue(testRailJsonParser.getUnindexedSuiteIds().isEmpty());
+    }
+
+    @Test
+    public final void testNewPlanShellAndEntries() throws Exception {
+        TestRailJsonParser testRailJsonParser = new TestRailJsonParser();
+        testRailJsonParser.createNewPlan(PLAN_JSON, testsJson());
+
+        JSONObject shell = parse(testRailJsonParser.createNewPlanShell());
+        assertEquals(3, shell.size());
+        assertEquals("Nightly", shell.get("name"));
+        assertEquals("Base plan", shell.get("description"));
+        assertEquals("7", shell.get("milestone_id"));
+
+        List<String> entries = testRailJsonParser.getNewPlanEntries();
+        assertEquals(2, entries.size());
+
+        JSONObject first = parse(entries.get(0));
+        assertEquals("10", first.get("suite_id"));
+        assertEquals(Boolean.FALSE, first.get("include_all"));
+        assertEquals("[1,2,3]", first.get("case_ids").toString());
+        assertEquals("[\"1\",\"2\"]", first.get("config_ids").toString());
+        JSONArray runs = (JSONArray) first.get("runs");
+        assertEquals(2, runs.size());
+        JSONObject run = (JSONObject) runs.get(0);
+        assertEquals(Boolean.FALSE, run.get("include_all"));
+        assertTrue(run.containsKey("assignedto_id"));
+        assertNull(run.get("assignedto_id"));
+        assertEquals("[1,2]", run.get("case_ids").toString());
+        assertEquals("[\"1\"]", run.get("config_ids").toString());
+        run = (JSONObject) runs.get(1);
+        assertEquals("[3]", run.get("case_ids").toString());
+        assertEquals("[\"2\"]", run.get("config_ids").toString());
+
+        JSONObject second = parse(entries.get(1));
+        assertEquals("11", second.get("suite_id"));
+        assertEquals(Boolean.FALSE, second.get("include_all"));
+        assertEquals("[4]", second.get("case_ids").toString());
+        assertEquals("[\"3\"]", second.get("config_ids").toString());
+        assertEquals(1, ((JSONArray) second.get("runs")).size());
+        assertEquals("11", testRailJsonParser.getEntrySuiteId(entries.get(1)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public final void testNewPlanShellNeedsAPlan() {
+        new TestRailJsonParser().createNewPlanShell();
+    }
+
+}
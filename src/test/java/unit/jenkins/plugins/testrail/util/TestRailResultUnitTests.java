@@ -0,0 +1,18 @@
+package jenkins.plugins.testrail.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TestRailResultUnitTests {
+
+    @Test
+    public final void testElapsed() {
+        assertNull(new TestRailResult(1, 1, 0, null).getElapsed());
+        assertEquals("59s", new TestRailResult(1, 1, 59, null).getElapsed());
+        assertEquals("2m", new TestRailResult(1, 1, 120, null).getElapsed());
+        assertEquals("1m 5s", new TestRailResult(1, 1, 65, null).getElapsed());
+    }
+
+}
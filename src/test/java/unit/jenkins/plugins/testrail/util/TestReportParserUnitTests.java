@@ -0,0 +1,115 @@
+package jenkins.plugins.testrail.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+
+public class TestReportParserUnitTests {
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final PrintStream logger = new PrintStream(log);
+
+    private List<TestRailResult> parse(String pattern, String xml) throws Exception {
+        return new TestReportParser(pattern, null).parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), logger);
+    }
+
+    private static TestRailResult find(List<TestRailResult> results, long caseId) {
+        for (TestRailResult result : results) {
+            if (result.getCaseId() == caseId) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public final void testJUnit() throws Exception {
+        List<TestRailResult> results = parse(null, "<testsuite>"
+                + "<testcase classname=\"a.B\" name=\"C1 passes\" time=\"2.4\"/>"
+                + "<testcase classname=\"a.B\" name=\"C2 fails\" time=\"0.2\"><failure message=\"expected 1\">trace</failure></testcase>"
+                + "<testcase classname=\"a.B\" name=\"C3 errors\"><error message=\"NPE\"/></testcase>"
+                + "<testcase classname=\"a.B\" name=\"C4 skipped\"><skipped/></testcase>"
+                + "<testcase classname=\"a.B\" name=\"no case id\"/>"
+                + "</testsuite>");
+
+        assertEquals(3, results.size());
+        assertEquals(TestRailResult.STATUS_PASSED, find(results, 1).getStatusId());
+        assertEquals(2, find(results, 1).getElapsedSeconds());
+        assertNull(find(results, 1).getComment());
+        assertEquals(TestRailResult.STATUS_FAILED, find(results, 2).getStatusId());
+        assertEquals("expected 1", find(results, 2).getComment());
+        assertEquals(TestRailResult.STATUS_FAILED, find(results, 3).getStatusId());
+        assertEquals("NPE", find(results, 3).getComment());
+        assertNull(find(results, 4));
+    }
+
+    @Test
+    public final void testTestNG() throws Exception {
+        List<TestRailResult> results = parse(null, "<testng-results><suite><test><class name=\"a.B\">"
+                + "<test-method is-config=\"true\" status=\"PASS\" name=\"setUp C9\" duration-ms=\"5\"/>"
+                + "<test-method status=\"PASS\" name=\"C10_passes\" duration-ms=\"61000\"/>"
+                + "<test-method status=\"FAIL\" name=\"fails\" description=\"C11\" duration-ms=\"10\">"
+                + "<exception class=\"java.lang.AssertionError\"><message><![CDATA[expected]]></message></exception>"
+                + "</test-method>"
+                + "<test-method status=\"SKIP\" name=\"C12_skipped\" duration-ms=\"0\"/>"
+                + "</class></test></suite></testng-results>");
+
+        assertEquals(2, results.size());
+        assertNull(find(results, 9));
+        assertEquals(TestRailResult.STATUS_PASSED, find(results, 10).getStatusId());
+        assertEquals(61, find(results, 10).getElapsedSeconds());
+        assertEquals(TestRailResult.STATUS_FAILED, find(results, 11).getStatusId());
+        assertEquals("java.lang.AssertionError", find(results, 11).getComment());
+        assertNull(find(results, 12));
+    }
+
+    @Test
+    public final void testSeveralCaseIdsInOneName() throws Exception {
+        List<TestRailResult> results = parse(null, "<testsuite><testcase name=\"C21 C22 login\"/></testsuite>");
+
+        assertEquals(2, results.size());
+        assertEquals(21, results.get(0).getCaseId());
+        assertEquals(22, results.get(1).getCaseId());
+    }
+
+    @Test
+    public final void testMatchesThatAreNotCaseIdsAreSkipped() throws Exception {
+        List<TestRailResult> results = parse("(C\\d+)", "<testsuite><testcase name=\"C31 login\"/></testsuite>");
+        assertEquals(0, results.size());
+        assertTrue(log.toString().contains("C31"));
+
+        results = parse("C(\\d+)?", "<testsuite><testcase name=\"C C32\"/></testsuite>");
+        assertEquals(1, results.size());
+        assertEquals(32, results.get(0).getCaseId());
+    }
+
+    @Test
+    public final void testCommentIsTruncated() throws Exception {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < TestReportParser.MAX_COMMENT_LENGTH + 50; i++) {
+            message.append('x');
+        }
+        List<TestRailResult> results = parse(null, "<testsuite><testcase name=\"C41\"><failure message=\""
+                + message + "\"/></testcase></testsuite>");
+
+        assertEquals(TestReportParser.MAX_COMMENT_LENGTH, results.get(0).getComment().length());
+    }
+
+    @Test
+    public final void testCheckCaseIdPattern() {
+        assertNull(TestReportParser.checkCaseIdPattern("C(\\d+)"));
+        assertNull(TestReportParser.checkCaseIdPattern("^T-([0-9]+)_"));
+        assertNull(TestReportParser.checkCaseIdPattern("(?:case|C)(\\d{1,8})"));
+        assertNull(TestReportParser.checkCaseIdPattern("C((\\d+))"));
+        assertNotNull(TestReportParser.checkCaseIdPattern("C\\d+"));
+        assertNotNull(TestReportParser.checkCaseIdPattern("C(?:\\d+)"));
+        assertNotNull(TestReportParser.checkCaseIdPattern("C(\\d+"));
+    }
+
+}